@@ -0,0 +1,46 @@
+package lox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnvironmentBenchmark {
+    // how many scopes out the variable being read is
+    @Param({"0", "1", "4", "16"})
+    int depth;
+
+    Environment innermost;
+    Environment globals;
+    Token global;
+
+    @Setup
+    public void setup() {
+        globals = new Environment();
+        global = new Token(TokenType.IDENTIFIER, "answer", null, 1);
+        globals.define(global.lexeme, 42.0);
+
+        // the variable lives in slot 0 of the outermost local scope
+        Environment outermost = new Environment(globals, 4);
+        outermost.defineAt(0, 42.0);
+        innermost = outermost;
+        for (int i = 0; i < depth; i++) {
+            innermost = new Environment(innermost, 4);
+        }
+    }
+
+    @Benchmark
+    public Object getLocal() {
+        return innermost.getAt(depth, 0);
+    }
+
+    @Benchmark
+    public Object getGlobal() {
+        return globals.get(global);
+    }
+}
@@ -0,0 +1,48 @@
+package lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Runs whole programs end to end on both engines. The source is prepared, and for the VM compiled, once
+// in setup, so this measures execution only. None of the programs print, so output doesn't skew the numbers.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InterpreterBenchmark {
+    @Param({"fib", "loops", "strings", "calls"})
+    String program;
+
+    // "tree" is the tree-walking Interpreter, "vm" compiles to bytecode first
+    @Param({"tree", "vm"})
+    String engine;
+
+    Interpreter interpreter;
+    VM vm;
+    List<Stmt> statements;
+    Chunk chunk;
+
+    @Setup
+    public void setup() {
+        interpreter = new Interpreter();
+        vm = new VM(interpreter);
+        statements = Programs.prepare(Programs.named(program));
+        if (engine.equals("vm")) {
+            chunk = new Compiler(interpreter.reporter).compile(statements);
+            if (chunk == null) throw new IllegalStateException("Benchmark program failed to compile.");
+        }
+    }
+
+    @Benchmark
+    public void interpret() {
+        if (engine.equals("vm")) {
+            vm.interpret(chunk);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    // "wide" is many short statements, "deep" is one expression nested many levels
+    @Param({"wide", "deep"})
+    String shape;
+
+    List<Token> tokens;
+
+    @Setup
+    public void setup() {
+        String source = shape.equals("wide") ? Programs.wide(10000) : Programs.deep(500);
+        tokens = new Scanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+}
@@ -0,0 +1,83 @@
+package lox;
+
+import java.util.List;
+
+// Lox sources shared by the benchmarks, and a helper that takes one through every stage before
+// interpretation so a benchmark can measure just the part it cares about.
+final class Programs {
+    private Programs() {}
+
+    // Lox has no return statement yet, so fib counts its calls in a global instead of adding results
+    static final String FIB =
+        "var calls = 0;\n" +
+        "fun fib(n) {\n" +
+        "  calls = calls + 1;\n" +
+        "  if (n >= 2) { fib(n - 1); fib(n - 2); }\n" +
+        "}\n" +
+        "fib(18);\n";
+
+    static final String NESTED_LOOPS =
+        "fun loops() {\n" +
+        "  var sum = 0;\n" +
+        "  for (var i = 0; i < 300; i = i + 1) {\n" +
+        "    for (var j = 0; j < 300; j = j + 1) {\n" +
+        "      sum = sum + i * j;\n" +
+        "    }\n" +
+        "  }\n" +
+        "}\n" +
+        "loops();\n";
+
+    static final String STRING_CONCAT =
+        "fun build() {\n" +
+        "  var s = \"\";\n" +
+        "  for (var i = 0; i < 2000; i = i + 1) { s = s + \"x\"; }\n" +
+        "}\n" +
+        "build();\n";
+
+    static final String MANY_ARGUMENTS =
+        "fun take(a, b, c, d, e, f, g, h) { var x = a; }\n" +
+        "for (var i = 0; i < 20000; i = i + 1) { take(i, i, i, i, i, i, i, i); }\n";
+
+    static String named(String name) {
+        switch (name) {
+            case "fib": return FIB;
+            case "loops": return NESTED_LOOPS;
+            case "strings": return STRING_CONCAT;
+            case "calls": return MANY_ARGUMENTS;
+        }
+
+        throw new IllegalArgumentException("No benchmark program named " + name);
+    }
+
+    // scans, parses, optimizes, resolves and analyzes the source through LoxSession.prepare, so the
+    // benchmarks run exactly the tree the CLI and LoxEngine would
+    static List<Stmt> prepare(String source) {
+        PreparedScript script = new LoxSession(System.out).prepare(source);
+        if (script == null) throw new IllegalArgumentException("Benchmark program has a syntax error.");
+        return script.statements;
+    }
+
+    // a program of the given number of lines, with a mix of declarations, arithmetic, strings and calls
+    static String wide(int lines) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            switch (i % 4) {
+                case 0: source.append("var v").append(i).append(" = ").append(i).append(" * 2 + 1;\n"); break;
+                case 1: source.append("print \"line ").append(i).append("\" + \"!\";\n"); break;
+                case 2: source.append("if (v").append(i - 2).append(" > 10) { v").append(i - 2).append(" = v").append(i - 2).append(" - 1; }\n"); break;
+                default: source.append("fun f").append(i).append("(a, b) { var c = a + b; print c; }\n"); break;
+            }
+        }
+        return source.toString();
+    }
+
+    // a single expression nested the given number of levels deep
+    static String deep(int depth) {
+        StringBuilder source = new StringBuilder("print ");
+        for (int i = 0; i < depth; i++) source.append("(1 + ");
+        source.append("1");
+        for (int i = 0; i < depth; i++) source.append(")");
+        source.append(";\n");
+        return source.toString();
+    }
+}
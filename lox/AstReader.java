@@ -0,0 +1,60 @@
+package lox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// generated by tool/GenerateAst. see Snapshot for the rest of the format.
+class AstReader extends Snapshot.Input {
+  AstReader(byte[] bytes) throws IOException {
+    super(bytes);
+  }
+
+  Expr readExpr() {
+    switch (readTag()) {
+      case 0: return null;
+      case 1: return new Expr.Assign(readToken(), readExpr());
+      case 2: return new Expr.Binary(readExpr(), readToken(), readExpr());
+      case 3: return new Expr.Call(readExpr(), readToken(), readExprs());
+      case 4: return new Expr.Grouping(readExpr());
+      case 5: return new Expr.Literal(readLiteral());
+      case 6: return new Expr.Logical(readExpr(), readToken(), readExpr());
+      case 7: return new Expr.Unary(readToken(), readExpr());
+      case 8: return new Expr.Variable(readToken());
+      default: throw new IllegalStateException("Unknown Expr tag.");
+    }
+  }
+
+  List<Expr> readExprs() {
+    int count = readCount();
+    List<Expr> exprs = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      exprs.add(readExpr());
+    }
+    return exprs;
+  }
+
+  Stmt readStmt() {
+    switch (readTag()) {
+      case 0: return null;
+      case 1: return new Stmt.Block(readStmts());
+      case 2: return new Stmt.Expression(readExpr());
+      case 3: return new Stmt.For(readToken(), readStmt(), readExpr(), readExpr(), readStmt());
+      case 4: return new Stmt.Function(readToken(), readTokens(), readStmts());
+      case 5: return new Stmt.If(readExpr(), readStmt(), readStmt());
+      case 6: return new Stmt.Print(readExpr());
+      case 7: return new Stmt.Var(readToken(), readExpr());
+      case 8: return new Stmt.While(readToken(), readExpr(), readStmt());
+      default: throw new IllegalStateException("Unknown Stmt tag.");
+    }
+  }
+
+  List<Stmt> readStmts() {
+    int count = readCount();
+    List<Stmt> stmts = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      stmts.add(readStmt());
+    }
+    return stmts;
+  }
+}
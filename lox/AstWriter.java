@@ -0,0 +1,168 @@
+package lox;
+
+import java.util.List;
+
+// generated by tool/GenerateAst. see Snapshot for the rest of the format.
+class AstWriter extends Snapshot.Output implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  void writeExpr(Expr expr) {
+    if (expr == null) {
+      writeTag(0);
+    } else {
+      expr.accept(this);
+    }
+  }
+
+  void writeExprs(List<Expr> exprs) {
+    writeCount(exprs.size());
+    for (Expr expr : exprs) {
+      writeExpr(expr);
+    }
+  }
+
+  void writeStmt(Stmt stmt) {
+    if (stmt == null) {
+      writeTag(0);
+    } else {
+      stmt.accept(this);
+    }
+  }
+
+  void writeStmts(List<Stmt> stmts) {
+    writeCount(stmts.size());
+    for (Stmt stmt : stmts) {
+      writeStmt(stmt);
+    }
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    writeTag(1);
+    writeToken(expr.name);
+    writeExpr(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    writeTag(2);
+    writeExpr(expr.left);
+    writeToken(expr.operator);
+    writeExpr(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    writeTag(3);
+    writeExpr(expr.callee);
+    writeToken(expr.paren);
+    writeExprs(expr.arguments);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    writeTag(4);
+    writeExpr(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    writeTag(5);
+    writeLiteral(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    writeTag(6);
+    writeExpr(expr.left);
+    writeToken(expr.operator);
+    writeExpr(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    writeTag(7);
+    writeToken(expr.operator);
+    writeExpr(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    writeTag(8);
+    writeToken(expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    writeTag(1);
+    writeStmts(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    writeTag(2);
+    writeExpr(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    writeTag(3);
+    writeToken(stmt.keyword);
+    writeStmt(stmt.initializer);
+    writeExpr(stmt.condition);
+    writeExpr(stmt.increment);
+    writeStmt(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    writeTag(4);
+    writeToken(stmt.name);
+    writeTokens(stmt.params);
+    writeStmts(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    writeTag(5);
+    writeExpr(stmt.condition);
+    writeStmt(stmt.thenBranch);
+    writeStmt(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    writeTag(6);
+    writeExpr(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    writeTag(7);
+    writeToken(stmt.name);
+    writeExpr(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    writeTag(8);
+    writeToken(stmt.keyword);
+    writeExpr(stmt.condition);
+    writeStmt(stmt.body);
+    return null;
+  }
+
+}
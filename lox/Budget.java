@@ -0,0 +1,70 @@
+package lox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// How much one run of a script may do before it is stopped: an amount of fuel, where every loop iteration
+// and every call burns one unit, and a wall clock deadline. Running out of either ends the script with a
+// runtime error, so an untrusted script can't hold on to its thread forever.
+//
+// The engines only do 'if (--budget.tick < 0) budget.nextSlice(token)' at loop back edges and call entries.
+// Fuel is handed out in slices, and the clock is only read when a slice runs out, since reading it costs
+// far more than counting.
+//
+// Threads the script spawns each get a Budget of their own for the counting, but take their slices from
+// the same fuel and stop at the same deadline as the script that spawned them.
+final class Budget {
+    static final long UNLIMITED = Long.MAX_VALUE;
+    private static final int SLICE = 1024;
+
+    // set by the embedder, applied from the next start
+    long fuel = UNLIMITED;
+    long timeoutNanos = UNLIMITED;
+
+    // units left in the current slice. goes negative when the slice is used up.
+    int tick = 0;
+    // units not handed out yet. a new run starts a new one, so threads left over from the last run can't
+    // take fuel from it.
+    private AtomicLong remaining = new AtomicLong(UNLIMITED);
+    private long deadline = 0;
+
+    Budget() {
+    }
+
+    // for a thread spawned by the script parent is running. its first check takes a slice.
+    Budget(Budget parent) {
+        this.fuel = parent.fuel;
+        this.timeoutNanos = parent.timeoutNanos;
+        this.remaining = parent.remaining;
+        this.deadline = parent.deadline;
+    }
+
+    // called before each run of a script
+    void start() {
+        remaining = new AtomicLong(fuel);
+        if (timeoutNanos != UNLIMITED) deadline = System.nanoTime() + timeoutNanos;
+        tick = (int)take(0);
+    }
+
+    // token is where the script was when the slice ran out, for the error
+    void nextSlice(Token token) {
+        if (timeoutNanos != UNLIMITED && System.nanoTime() - deadline > 0) {
+            throw new RuntimeError(token, "Script ran past its deadline.");
+        }
+
+        // the unit that made tick go negative still has to be paid for
+        long slice = take(tick < 0 ? 1 : 0);
+        if (slice < 0) throw new RuntimeError(token, "Script ran out of fuel.");
+        tick = (int)slice;
+    }
+
+    // pays owed units and takes the next slice, which may be smaller than SLICE (or empty) when the fuel is
+    // nearly gone. -1 if there isn't enough left to pay.
+    private long take(long owed) {
+        for (;;) {
+            long left = remaining.get();
+            if (left < owed) return -1;
+            long slice = Math.min(SLICE, left - owed);
+            if (remaining.compareAndSet(left, left - owed - slice)) return slice;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A Chunk is a compiled function body: a flat array of instructions plus the constants it refers to.
+// The top level script is compiled into a Chunk too, it just has no parameters.
+class Chunk {
+    final String name;
+    final int arity;
+    // number of slots the function's environment needs (parameters plus top level locals)
+    final int slotCount;
+
+    byte[] code = new byte[64];
+    int count = 0;
+    // the token each instruction came from, so runtime errors can report the right line.
+    // only the first byte of an instruction has an entry.
+    Token[] tokens = new Token[64];
+    final List<Object> constants = new ArrayList<>();
+    // the global each GET_GLOBAL and SET_GLOBAL found last time, by the index of its name constant.
+    // made by the VM the first time the chunk runs, and shared by every VM that runs the chunk after that.
+    // an entry another VM left behind belongs to other globals and is replaced. see VM.globalCell.
+    Environment.Cell[] cells = null;
+
+    Chunk(String name, int arity, int slotCount) {
+        this.name = name;
+        this.arity = arity;
+        this.slotCount = slotCount;
+    }
+
+    void write(byte value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+
+        code[count] = value;
+        tokens[count] = token;
+        count++;
+    }
+
+    // returns the index of the constant so the instruction can refer to it
+    int addConstant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
@@ -0,0 +1,361 @@
+package lox;
+
+import java.util.List;
+
+// The Compiler turns the (already resolved) syntax tree into bytecode for the VM.
+// It is a visitor just like the Interpreter, but instead of evaluating each node it emits
+// the instructions that will evaluate it later.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static class CompileError extends RuntimeException {
+    }
+
+    private Chunk chunk;
+    private final ErrorReporter reporter;
+    // true while compiling a statement that is the last thing its function does
+    private boolean tailPosition = false;
+
+    Compiler(ErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        chunk = new Chunk("script", 0, 0);
+        try {
+            for (Stmt statement : statements) {
+                compile(statement);
+            }
+        } catch (CompileError error) {
+            // the error has already been reported, the chunk is useless now
+            return null;
+        }
+
+        emit(OpCode.RETURN, null);
+        return chunk;
+    }
+
+    private void compile(Stmt stmt) {
+        compile(stmt, false);
+    }
+
+    private void compile(Stmt stmt, boolean tail) {
+        boolean enclosing = tailPosition;
+        tailPosition = tail;
+        stmt.accept(this);
+        tailPosition = enclosing;
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void emit(byte op, Token token) {
+        chunk.write(op, token);
+    }
+
+    private void emitShort(int value) {
+        chunk.write((byte)((value >> 8) & 0xff), null);
+        chunk.write((byte)(value & 0xff), null);
+    }
+
+    private void emitConstant(Object value, Token token) {
+        emit(OpCode.CONSTANT, token);
+        emitShort(makeConstant(value, token));
+    }
+
+    private int makeConstant(Object value, Token token) {
+        int index = chunk.addConstant(value);
+        if (index > 0xffff) throw error(token, "Too many constants in one chunk.");
+        return index;
+    }
+
+    // emits a jump with a placeholder offset and returns where the offset is so it can be patched later
+    private int emitJump(byte op, Token token) {
+        emit(op, token);
+        emitShort(0xffff);
+        return chunk.count - 2;
+    }
+
+    private void patchJump(int offset, Token token) {
+        // -2 to account for the offset itself
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) throw error(token, "Too much code to jump over.");
+
+        chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart, Token token) {
+        emit(OpCode.LOOP, token);
+
+        // +2 to jump back over the LOOP instruction's own operand
+        int offset = chunk.count - loopStart + 2;
+        if (offset > 0xffff) throw error(token, "Loop body too large.");
+        emitShort(offset);
+    }
+
+    private CompileError error(Token token, String message) {
+        reporter.error(token, message);
+        return new CompileError();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // a block without declarations has no scope of its own, see Resolver.visitBlockStmt
+        if (stmt.slotCount > 0) {
+            emit(OpCode.PUSH_SCOPE, null);
+            emitShort(stmt.slotCount);
+        }
+        for (int i = 0; i < stmt.statements.size(); i++) {
+            compile(stmt.statements.get(i), tailPosition && i == stmt.statements.size() - 1);
+        }
+        if (stmt.slotCount > 0) emit(OpCode.POP_SCOPE, null);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        // Lox has no return statement, so a call whose value is thrown away at the very end of a function
+        // is a tail call: the function returns nil right after it no matter what the call returned
+        if (tailPosition && stmt.expression instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)stmt.expression;
+            compileArguments(call);
+            emit(OpCode.TAIL_CALL, call.paren);
+            chunk.write((byte)call.arguments.size(), null);
+            return null;
+        }
+
+        compile(stmt.expression);
+        emit(OpCode.POP, null);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        loop(stmt.keyword, stmt.slotCount, stmt.initializer, stmt.condition, stmt.increment, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // each function body gets its own chunk which lives in the enclosing chunk's constants
+        Chunk enclosing = chunk;
+        chunk = new Chunk(stmt.name.lexeme, stmt.params.size(), stmt.slotCount);
+        for (int i = 0; i < stmt.body.size(); i++) {
+            compile(stmt.body.get(i), i == stmt.body.size() - 1);
+        }
+        emit(OpCode.RETURN, null);
+        Chunk function = chunk;
+        chunk = enclosing;
+
+        emit(OpCode.FUNCTION, stmt.name);
+        emitShort(makeConstant(function, stmt.name));
+        define(stmt.name, stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+        emit(OpCode.POP, null);
+        compile(stmt.thenBranch, tailPosition);
+        int elseJump = emitJump(OpCode.JUMP, null);
+
+        patchJump(thenJump, null);
+        emit(OpCode.POP, null);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch, tailPosition);
+        patchJump(elseJump, null);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT, null);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL, null);
+        }
+
+        define(stmt.name, stmt.slot);
+        return null;
+    }
+
+    // mirrors Interpreter.define: declarations with a slot are locals, the rest are globals
+    private void define(Token name, int slot) {
+        if (slot < 0) {
+            emit(OpCode.DEFINE_GLOBAL, name);
+            emitShort(makeConstant(name, name));
+        } else {
+            emit(OpCode.DEFINE_LOCAL, name);
+            emitShort(slot);
+        }
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt.keyword, stmt.slotCount, null, stmt.condition, null, stmt.body);
+        return null;
+    }
+
+    // mirrors Interpreter.loop: the loop's scope, if it has one, is pushed once around the whole loop
+    private void loop(Token keyword, int slotCount, Stmt initializer, Expr condition, Expr increment, Stmt body) {
+        if (slotCount > 0) {
+            emit(OpCode.PUSH_SCOPE, null);
+            emitShort(slotCount);
+        }
+        if (initializer != null) compile(initializer);
+
+        int loopStart = chunk.count;
+        compile(condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+        emit(OpCode.POP, null);
+        compile(body);
+        if (increment != null) {
+            compile(increment);
+            emit(OpCode.POP, null);
+        }
+        emitLoop(loopStart, keyword);
+
+        patchJump(exitJump, null);
+        emit(OpCode.POP, null);
+        if (slotCount > 0) emit(OpCode.POP_SCOPE, null);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        if (expr.depth < 0) {
+            emit(OpCode.SET_GLOBAL, expr.name);
+            emitShort(makeConstant(expr.name, expr.name));
+        } else {
+            emit(OpCode.SET_LOCAL, expr.name);
+            emitShort(expr.depth);
+            emitShort(expr.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case GREATER: emit(OpCode.GREATER, expr.operator); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL, expr.operator); break;
+            case LESS: emit(OpCode.LESS, expr.operator); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL, expr.operator); break;
+            case MINUS: emit(OpCode.SUBTRACT, expr.operator); break;
+            case PLUS: emit(OpCode.ADD, expr.operator); break;
+            case SLASH: emit(OpCode.DIVIDE, expr.operator); break;
+            case STAR: emit(OpCode.MULTIPLY, expr.operator); break;
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL, expr.operator); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL, expr.operator); break;
+            // the Interpreter evaluates any other operator to nil
+            default:
+                emit(OpCode.POP, null);
+                emit(OpCode.POP, null);
+                emit(OpCode.NIL, null);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compileArguments(expr);
+        emit(OpCode.CALL, expr.paren);
+        // the Parser caps calls at 255 arguments so the count fits in a byte
+        chunk.write((byte)expr.arguments.size(), null);
+        return null;
+    }
+
+    // pushes the callee and then the arguments
+    private void compileArguments(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL, null);
+        } else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE, null);
+        } else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE, null);
+        } else {
+            emitConstant(expr.value, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR) {
+            // if the left side is truthy we keep it as the result and skip the right side
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+            int endJump = emitJump(OpCode.JUMP, null);
+
+            patchJump(elseJump, null);
+            emit(OpCode.POP, null);
+            compile(expr.right);
+            patchJump(endJump, null);
+        } else {
+            // if the left side is falsey it is the result
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+            emit(OpCode.POP, null);
+            compile(expr.right);
+            patchJump(endJump, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG: emit(OpCode.NOT, expr.operator); break;
+            case MINUS: emit(OpCode.NEGATE, expr.operator); break;
+            default:
+                emit(OpCode.POP, null);
+                emit(OpCode.NIL, null);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth < 0) {
+            emit(OpCode.GET_GLOBAL, expr.name);
+            emitShort(makeConstant(expr.name, expr.name));
+        } else {
+            emit(OpCode.GET_LOCAL, expr.name);
+            emitShort(expr.depth);
+            emitShort(expr.slot);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,256 @@
+package lox;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The natives for running Lox functions side by side:
+//   spawn(fn)              runs fn (which takes no arguments) on a thread of its own and returns a future
+//   await(future)          waits for the function to finish and returns what it returned. if it stopped
+//                          with a runtime error, that error is raised again here.
+//   channel(capacity)      a queue for passing values between threads, holding at most capacity values
+//   send(channel, value)   adds value to the channel, waiting while it is full
+//   receive(channel)       takes the oldest value out of the channel, waiting while it is empty
+//   parallelMap(fn, array) calls fn(element) for every element of the array, spread over all cores, and
+//                          returns a new array of the results in the same order. a Lox function can't return
+//                          a value yet, so its results are all nil and it has to hand back what it worked out
+//                          some other way, e.g. through a channel, or by setting it in a shared array.
+// A parallel reduce has to wait until functions can return values: folding with a function that always
+// returns nil can't work out anything.
+//
+// A spawned function, and each range of a parallel map, runs on an Interpreter of its own (see
+// Interpreter.forThread) that shares the spawner's globals, output and budget. Lox has no closures, so
+// that is all threads can share: locals never leave the call that made them. A script should await what it
+// spawns, an error in a function nobody awaits is lost. An error in any call of a parallel map is raised by
+// the map itself.
+final class Concurrency {
+    private Concurrency() {}
+
+    // blocked sends and receives each hold on to a thread, so the pool grows as needed instead of making
+    // spawned functions wait for each other. the threads are daemons so a forgotten one never keeps the
+    // JVM alive.
+    private static final AtomicInteger threads = new AtomicInteger();
+    private static final ExecutorService pool = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "lox-spawn-" + threads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // parallel maps split their array into ranges for this pool. a range smaller than
+    // SEQUENTIAL isn't worth handing to other threads, it runs on the caller's thread instead.
+    private static final ForkJoinPool forkJoin = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int SEQUENTIAL = 64;
+
+    static final class Future {
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        @Override
+        public String toString() {
+            return "<future>";
+        }
+    }
+
+    static final class Channel {
+        // a blocking queue can't hold null, so nil goes through as this
+        private static final Object NIL = new Object();
+
+        private final BlockingQueue<Object> values;
+
+        Channel(int capacity) {
+            values = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public String toString() {
+            return "<channel>";
+        }
+    }
+
+    static void define(Environment globals) {
+        globals.define("spawn", new Native(1) {
+            @Override
+            public Object call1(Interpreter interpreter, Object function) {
+                return spawn(interpreter, function);
+            }
+        });
+
+        globals.define("await", new Native(1) {
+            @Override
+            public Object call1(Interpreter interpreter, Object future) {
+                if (!(future instanceof Future)) throw new NativeError("Can only await futures.");
+                return await((Future)future);
+            }
+        });
+
+        globals.define("channel", new Native(1) {
+            @Override
+            public Object call1(Interpreter interpreter, Object capacity) {
+                if (!(capacity instanceof Double) || (double)capacity < 1 ||
+                        (double)capacity > Integer.MAX_VALUE || (double)capacity % 1 != 0) {
+                    throw new NativeError("Channel capacity must be a positive whole number.");
+                }
+                return new Channel((int)(double)capacity);
+            }
+        });
+
+        globals.define("send", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object channel, Object value) {
+                try {
+                    channel(channel).values.put(value == null ? Channel.NIL : value);
+                } catch (InterruptedException error) {
+                    throw interrupted();
+                }
+                return null;
+            }
+        });
+
+        globals.define("receive", new Native(1) {
+            @Override
+            public Object call1(Interpreter interpreter, Object channel) {
+                try {
+                    Object value = channel(channel).values.take();
+                    return value == Channel.NIL ? null : value;
+                } catch (InterruptedException error) {
+                    throw interrupted();
+                }
+            }
+        });
+
+        globals.define("parallelMap", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object function, Object array) {
+                return parallelMap(interpreter, function(function, 1), LoxArray.elements(array));
+            }
+        });
+    }
+
+    private static Object spawn(Interpreter interpreter, Object callee) {
+        if (!(callee instanceof LoxCallable)) throw new NativeError("Can only spawn functions.");
+        LoxCallable function = (LoxCallable)callee;
+        if (function.arity() != 0) throw new NativeError("A spawned function can't take arguments.");
+
+        Interpreter thread = interpreter.forThread();
+        Future future = new Future();
+        pool.execute(() -> {
+            try {
+                future.result.complete(thread.boxed(function.call0(thread)));
+            } catch (Throwable error) {
+                future.result.completeExceptionally(error);
+            } finally {
+                // the run that spawned this may have flushed the output and returned long ago, so what this
+                // function printed would otherwise sit in the buffer until something else flushes it
+                thread.out.flush();
+            }
+        });
+        return future;
+    }
+
+    private static Object await(Future future) {
+        try {
+            return future.result.get();
+        } catch (InterruptedException error) {
+            throw interrupted();
+        } catch (ExecutionException error) {
+            Throwable cause = error.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof StackOverflowError) throw new NativeError("Stack overflow in spawned function.");
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static LoxArray parallelMap(Interpreter interpreter, LoxCallable function, Object[] elements) {
+        Object[] results = new Object[elements.length];
+        if (elements.length < SEQUENTIAL) {
+            map(interpreter, function, elements, results, 0, elements.length);
+        } else {
+            join(() -> forkJoin.invoke(new MapRange(interpreter, function, elements, results, 0, elements.length,
+                grain(elements.length))));
+        }
+        return LoxArray.of(results);
+    }
+
+    // how small the ranges get before each one runs on one thread. a few per core, so a core that finishes
+    // early can take over work from one that doesn't.
+    private static int grain(int count) {
+        return Math.max(SEQUENTIAL, count / (forkJoin.getParallelism() * 4));
+    }
+
+    private static void map(Interpreter interpreter, LoxCallable function, Object[] elements, Object[] results,
+            int from, int to) {
+        for (int i = from; i < to; i++) {
+            results[i] = interpreter.boxed(function.call1(interpreter, elements[i]));
+        }
+    }
+
+    // runs a fork/join computation, raising the first Lox error any of its pieces ran into
+    private static void join(Runnable computation) {
+        try {
+            computation.run();
+        } catch (RuntimeError | NativeError error) {
+            throw error;
+        } catch (RuntimeException error) {
+            // the pool can wrap an exception thrown on another thread in a new one of the same type
+            if (error.getCause() instanceof RuntimeError) throw (RuntimeError)error.getCause();
+            throw error;
+        }
+    }
+
+    // each range writes its own part of results, and joining the tasks makes the writes visible to the caller
+    private static final class MapRange extends RecursiveAction {
+        private final Interpreter interpreter;
+        private final LoxCallable function;
+        private final Object[] elements;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        MapRange(Interpreter interpreter, LoxCallable function, Object[] elements, Object[] results,
+                int from, int to, int grain) {
+            this.interpreter = interpreter;
+            this.function = function;
+            this.elements = elements;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                map(interpreter.forThread(), function, elements, results, from, to);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new MapRange(interpreter, function, elements, results, from, middle, grain),
+                new MapRange(interpreter, function, elements, results, middle, to, grain));
+        }
+    }
+
+    private static LoxCallable function(Object function, int arity) {
+        if (!(function instanceof LoxCallable) || ((LoxCallable)function).arity() != arity) {
+            throw new NativeError("Expected a function that takes " + arity + " arguments.");
+        }
+        return (LoxCallable)function;
+    }
+
+    private static Channel channel(Object channel) {
+        if (!(channel instanceof Channel)) throw new NativeError("Expected a channel.");
+        return (Channel)channel;
+    }
+
+    private static NativeError interrupted() {
+        Thread.currentThread().interrupt();
+        return new NativeError("Interrupted while waiting.");
+    }
+}
@@ -1,56 +1,142 @@
 package lox;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Environment {
+    // A global variable. Once a global has been defined its cell never changes, redefining or assigning
+    // it only changes the value inside. That lets a variable expression remember the cell it found
+    // the first time and skip the lookup on every later read.
+    // Threads a script spawns share its globals, so a value one of them writes is seen by the others.
+    static class Cell {
+        // the globals this cell belongs to, so a cached cell is never used with another interpreter's globals
+        final Environment owner;
+        volatile Object value;
+
+        Cell(Environment owner, Object value) {
+            this.owner = owner;
+            this.value = value;
+        }
+
+        // every write to an existing global goes through here
+        void set(Object value) {
+            // memoized functions only stay valid while the functions they call stay the same
+            if (this.value instanceof MemoizedFunction && this.value != value) owner.redefined();
+            this.value = value;
+        }
+    }
+
     // No need to map tokens to values because tokens store a place in the code
     // All we need is the variable name to associate it with the value
-    private final Map<String, Object> values = new HashMap<>();
+    // Only the global environment uses the map. Globals can be referenced before they are declared
+    // (e.g. by a function body) so they have to be looked up by name. Spawned threads may define globals
+    // while others look them up, so it is a concurrent map.
+    private final Map<String, Cell> values;
+    // Local environments are plain arrays. The Resolver has already worked out which slot every local
+    // lives in, so reading one is an index instead of a hash lookup. A function's locals are only ever
+    // seen by the thread running the call (there are no closures), so they need no locking.
+    private final Object[] slots;
+    // Numbers are kept unboxed next to the slots. A slot holding Interpreter.UNBOXED means its value is
+    // in the same index here. Only allocated once the first number is stored.
+    private double[] numbers;
     final Environment enclosing;
+    // how many times a global holding a memoized function has been overwritten (see MemoizedFunction)
+    volatile int redefinitions = 0;
 
     // For the global scopes environment
     Environment() {
         enclosing = null;
+        values = new ConcurrentHashMap<>();
+        slots = null;
     }
 
-    // For all other environments
-    Environment(Environment enclosing) {
+    // For all other environments. size is the number of slots the Resolver counted for this scope.
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[size];
+        if (Metrics.ENABLED) Metrics.environments.increment();
     }
 
     void define(String name, Object value) {
         // We do not check that it exists before hand. This allows the user to use
         // declarations in order to redefine variables.
-        values.put(name, value);
+        Cell cell = values.get(name);
+        if (cell == null) {
+            // another thread may define the same name at the same moment. only one cell can win.
+            cell = values.putIfAbsent(name, new Cell(this, value));
+            if (cell == null) return;
+        }
+        cell.set(value);
+    }
+
+    private synchronized void redefined() {
+        redefinitions++;
+    }
+
+    void defineAt(int slot, Object value) {
+        slots[slot] = value;
     }
 
     Object get(Token name) {
         // We pass the token to the get function in case we need to throw a RunTime Error.
         // It is not a static/syntax error because making recursive functions would be too difficult:
         // we need to allow variables to be referenced before they are defined so long as that reference is not evaluated
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+        // Only reached for globals, so there is no enclosing environment to fall back on.
+        return cell(name).value;
+    }
 
-        // If a variable isn't found in the current environment, simply check the enclosing environment
-        if (enclosing != null) return this.enclosing.get(name);
+    // the cell holding a global, for callers that want to cache it
+    Cell cell(Token name) {
+        Cell cell = values.get(name.lexeme);
+        if (cell != null) return cell;
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
+    // the cell holding a global, or null if it hasn't been defined
+    Cell find(String name) {
+        return values.get(name);
+    }
+
+    // the Resolver tells us exactly how many hops out the variable is, so we don't need to search for it
+    Object getAt(int depth, int slot) {
+        Environment environment = ancestor(depth);
+        Object value = environment.slots[slot];
+        if (value == Interpreter.UNBOXED) return environment.numbers[slot];
+        return value;
+    }
+
+    // the raw contents of a slot in this environment. if it is Interpreter.UNBOXED, read getNumber(slot).
+    Object getSlot(int slot) {
+        return slots[slot];
+    }
+
+    double getNumber(int slot) {
+        return numbers[slot];
+    }
+
+    void defineNumber(int slot, double value) {
+        if (numbers == null) numbers = new double[slots.length];
+        numbers[slot] = value;
+        slots[slot] = Interpreter.UNBOXED;
+    }
+
     // Assignment is not allowed to create a new variable so we define that rule here.
     void assign (Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+        cell(name).set(value);
+    }
 
-        if (enclosing != null) {
-            this.enclosing.assign(name, value);
-            return;
+    void assignAt(int depth, int slot, Object value) {
+        ancestor(depth).slots[slot] = value;
+    }
+
+    Environment ancestor(int depth) {
+        Environment environment = this;
+        for (int i = 0; i < depth; i++) {
+            environment = environment.enclosing;
         }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return environment;
     }
 }
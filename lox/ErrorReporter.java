@@ -0,0 +1,49 @@
+package lox;
+
+import java.io.PrintStream;
+
+// Collects the errors of one session. Every stage that can report an error (Scanner, Parser, Compiler,
+// Interpreter, VM) is given the reporter of the session it is working for, so sessions running side by
+// side never see each other's errors. They are written to the same OutputSink as the program's output, so
+// the two come out in the order they happened.
+class ErrorReporter {
+    private final OutputSink out;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    // for a stage used on its own, outside of a session. every error shows up right away.
+    ErrorReporter(PrintStream out) {
+        this(new OutputSink(out, OutputSink.DEFAULT_CAPACITY, 1));
+    }
+
+    ErrorReporter(OutputSink out) {
+        this.out = out;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    void runtimeError(RuntimeError error) {
+        if (Metrics.ENABLED) Metrics.runtimeErrors.increment();
+        out.println(error.getMessage() + 
+            "\n[line " + error.token.line + "]");
+
+        hadRuntimeError = true;
+    }
+
+    private void report(int line, String where, String message) {
+        out.println(
+            "[line " + line + "] Error" + where + ": " + message
+        );
+        hadError = true;
+    }
+}
@@ -3,14 +3,14 @@ package lox;
 import java.util.List;
 abstract class Expr {
   interface Visitor<R> {
+    R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
+    R visitCallExpr(Call expr);
     R visitGroupingExpr(Grouping expr);
     R visitLiteralExpr(Literal expr);
+    R visitLogicalExpr(Logical expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
-    R visitAssignExpr(Assign expr);
-    R visitLogicalExpr(Logical expr);
-    R visitCallExpr(Call expr);
   }
 
   static class Assign extends Expr {
@@ -26,6 +26,11 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    // not part of the syntax, filled in after parsing
+    int depth = -1;
+    int slot = -1;
+    Environment.Cell cell;
   }
 
   static class Binary extends Expr {
@@ -43,6 +48,9 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    // not part of the syntax, filled in after parsing
+    Specialization.Binary node = new Specialization.UninitializedBinary(this);
   }
 
   static class Call extends Expr {
@@ -60,6 +68,9 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    // not part of the syntax, filled in after parsing
+    LoxCallable cachedCallee;
   }
 
   static class Grouping extends Expr {
@@ -103,6 +114,9 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    // not part of the syntax, filled in after parsing
+    Specialization.Logical node = new Specialization.UninitializedLogical(this);
   }
 
   static class Unary extends Expr {
@@ -118,6 +132,9 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+
+    // not part of the syntax, filled in after parsing
+    Specialization.Unary node = new Specialization.UninitializedUnary(this);
   }
 
   static class Variable extends Expr {
@@ -131,7 +148,13 @@ abstract class Expr {
     }
 
     final Token name;
+
+    // not part of the syntax, filled in after parsing
+    int depth = -1;
+    int slot = -1;
+    Environment.Cell cell;
   }
 
+
   abstract <R> R accept(Visitor<R> visitor);
 }
@@ -1,18 +1,62 @@
 package lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 // This will be the evaluation code for each type of expression
 // We return an object from each visitor function because Lox is dynamically typed
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     // this is our API for the interpreter which takes in a list of statements and executes them
 
-    final Environment globals = new Environment();
+    final Environment globals;
     // this globals will hold a fixed reference to the outermost, global environment
-    private Environment environment = globals;
+    private Environment environment;
+
+    // Numbers don't get boxed while they are being computed. A visitor that produces a number can return
+    // UNBOXED and leave the value in 'number' instead of allocating a Double. evaluate() boxes it again
+    // for code that needs a real Object (printing, calls, conditions); the arithmetic paths, variable
+    // storage and assignments use evaluateUnboxed() and never box.
+    static final Object UNBOXED = new Object();
+    private double number;
+
+    // where this interpreter's runtime errors and printed output go
+    final ErrorReporter reporter;
+    final OutputSink out;
+
+    // whether global functions the PurityAnalyzer found to be pure are memoized, and per function
+    // overrides of that by name (true memoizes a function even if it wasn't found to be pure).
+    // off unless asked for, see MemoizedFunction.
+    boolean memoization = false;
+    final Map<String, Boolean> memoize;
+
+    // limits on how long a run may take. checked at loop back edges and calls, see Budget.
+    final Budget budget;
+
+    // where the program is, kept up to date only while a Profiler is attached
+    Profiler.CallStack callStack = null;
+
+    // the VM running on this interpreter's thread, if there is one. VM functions called back from a native
+    // run on it (see VM.Function).
+    VM vm = null;
 
     Interpreter() {
+        this(new OutputSink(System.out, OutputSink.DEFAULT_CAPACITY, 1));
+    }
+
+    private Interpreter(OutputSink out) {
+        this(new ErrorReporter(out), out);
+    }
+
+    Interpreter(ErrorReporter reporter, OutputSink out) {
+        this.globals = new Environment();
+        this.environment = globals;
+        this.reporter = reporter;
+        this.out = out;
+        this.memoize = new HashMap<>();
+        this.budget = new Budget();
+
         // The Interpreter constructor defines a native function for timing.
         // It is named 'clock' and it takes no arguments
         // If we wanted to define more native functions (e.g. reading from file, IO) it would be defined here.
@@ -22,12 +66,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
             
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
             @Override
             public String toString() { return "<native fn>"; }
         });
+
+        // spawn, await, channel, send, receive and parallelMap
+        Concurrency.define(globals);
+        // array, get, set, length and push
+        LoxArray.define(globals);
+        // map, put, has, remove, size and keys
+        LoxMap.define(globals);
+        // memoize
+        MemoizedFunction.define(globals);
+    }
+
+    // an interpreter for another thread to call this one's functions on. everything that belongs to the
+    // program (globals, output, settings and limits) is shared; what belongs to a running call (the current
+    // environment, the unboxed number, the VM's stacks) can't be, so the other thread gets its own.
+    private Interpreter(Interpreter parent) {
+        this.globals = parent.globals;
+        this.environment = globals;
+        this.reporter = parent.reporter;
+        this.out = parent.out;
+        this.memoization = parent.memoization;
+        this.memoize = parent.memoize;
+        this.budget = new Budget(parent.budget);
+    }
+
+    // the new interpreter only gets a VM if a VM function is called on it, see VM.Function.
+    Interpreter forThread() {
+        return new Interpreter(this);
     }
 
     public void interpret(List<Stmt> statements) {
@@ -36,12 +112,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            reporter.runtimeError(error);
+        } finally {
+            // tells the profiler nothing is running, so time between runs isn't blamed on the last statement
+            Profiler.CallStack stack = callStack;
+            if (stack != null) stack.statement(null);
         }
     }
 
     // our private helper method for stringifying values
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -67,35 +147,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
         Object left = evaluate(expr.left);
 
         // Below is the code that enables short circuit evaluation of logical expressions
-        if (expr.operator.type == TokenType.OR) {
-            // we return left because Lox is dynamically typed and will thus return an Object of equal truthiness
-            if (isTruthy(left)) return left;
-        } else {
-            if (!isTruthy(left)) return left;
-        }
+        // the site's node decides; see Specialization.GenericLogical for the plain version.
+        // we return left because Lox is dynamically typed and will thus return an Object of equal truthiness
+        if (expr.node.shortCircuits(left)) return left;
 
-        return evaluate(expr.right);
+        return evaluateUnboxed(expr.right);
     }
 
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         // to evaluate a grouping, simply evaluate the inner expression by recursively 
         // visiting the expression
-        return evaluate(expr.expression);
+        return evaluateUnboxed(expr.expression);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         // evaluates the operand of the expression. this is a post-order traversal because the children are evaluated first.
-        Object right = evaluate(expr.right);
+        Object right = evaluateUnboxed(expr.right);
+
+        // the site's node specializes itself on the operand type it sees (see Specialization)
+        if (right == UNBOXED) return expr.node.executeNumber(this, number);
+        if (right instanceof Double) return expr.node.executeNumber(this, (double)right);
+        return expr.node.execute(right);
+    }
 
-        switch(expr.operator.type) {
+    // the unspecialized unary operators, used by Specialization.GenericUnary
+    static Object unary(Token operator, Object right) {
+        switch(operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
                 // casting the right operator to a double is what makes the language dynamically typed
                 // we don't know what it is at runtime
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return - (double)right;
         }
 
@@ -104,15 +189,37 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
 
     @Override 
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        // a depth of -1 means the Resolver didn't find it in any local scope, so it must be a global
+        if (Metrics.ENABLED) {
+            Metrics.lookups.increment();
+            if (expr.depth > 0) Metrics.chainDepth.add(expr.depth);
+        }
+        if (expr.depth < 0) return globalCell(expr).value;
+
+        Environment scope = environment.ancestor(expr.depth);
+        Object value = scope.getSlot(expr.slot);
+        // a number stored unboxed stays unboxed
+        if (value == UNBOXED) number = scope.getNumber(expr.slot);
+        return value;
+    }
+
+    // the first read of a global looks it up by name and caches its cell on the expression.
+    // cells are never replaced, so the cache stays valid however often the global is reassigned.
+    private Environment.Cell globalCell(Expr.Variable expr) {
+        Environment.Cell cell = expr.cell;
+        if (cell != null && cell.owner == globals) return cell;
+
+        cell = globals.cell(expr.name);
+        expr.cell = cell;
+        return cell;
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
@@ -120,24 +227,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
         // evaluate the children of the expression first
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        // the left number has to be saved before the right operand overwrites it
+        Object left = evaluateUnboxed(expr.left);
+        double leftNumber = left == UNBOXED ? number : 0;
+        Object right = evaluateUnboxed(expr.right);
+        double rightNumber = right == UNBOXED ? number : 0;
+
+        if (left instanceof Double) {
+            leftNumber = (double)left;
+            left = UNBOXED;
+        }
+        if (right instanceof Double) {
+            rightNumber = (double)right;
+            right = UNBOXED;
+        }
+
+        // the site's node specializes itself on the operand types it sees (see Specialization)
+        if (left == UNBOXED && right == UNBOXED) {
+            return expr.node.executeNumbers(this, leftNumber, rightNumber);
+        }
 
-        switch(expr.operator.type) {
+        // only one side is a number, so the node is going to need real objects
+        if (left == UNBOXED) left = leftNumber;
+        if (right == UNBOXED) right = rightNumber;
+        return expr.node.execute(left, right);
+    }
+
+    // the unspecialized binary operators, used by Specialization.GenericBinary
+    static Object binary(Token operator, Object left, Object right) {
+        switch(operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 // PLUS is special because we must handle number addition and also concatenation
@@ -145,15 +277,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                // a long result is a Rope, so building a string in a loop doesn't copy it every time
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
@@ -167,30 +300,114 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
         // evaluate the callee first; could be another function call.
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            // here we evaluate the arguments themselves.
-            arguments.add(evaluate(argument));
+        // here we evaluate the arguments themselves. up to four of them are kept in locals and passed to
+        // one of the fixed arity entry points, so the common calls never build a list.
+        int argCount = expr.arguments.size();
+        Object a = null, b = null, c = null, d = null;
+        List<Object> arguments = null;
+        if (argCount > 4) {
+            arguments = new ArrayList<>(argCount);
+            for (Expr argument : expr.arguments) {
+                arguments.add(evaluate(argument));
+            }
+        } else {
+            if (argCount > 0) a = evaluate(expr.arguments.get(0));
+            if (argCount > 1) b = evaluate(expr.arguments.get(1));
+            if (argCount > 2) c = evaluate(expr.arguments.get(2));
+            if (argCount > 3) d = evaluate(expr.arguments.get(3));
         }
-        // checks to make sure that we are calling a callable object.
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+
+        // each call site remembers the last function it called. if it's the same one again, we already
+        // know it's callable and that this site passes it the right number of arguments.
+        LoxCallable function = expr.cachedCallee;
+        if (callee != function) {
+            // checks to make sure that we are calling a callable object.
+            if (!(callee instanceof LoxCallable)) {
+                throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            }
+
+            function = (LoxCallable)callee;
+
+            // checks to make sure the number of arguments is equal to the arity of the function
+            if(argCount != function.arity()) {
+                throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + argCount + ".");
+            }
+
+            expr.cachedCallee = function;
         }
 
-        LoxCallable function = (LoxCallable)callee;
+        if (--budget.tick < 0) budget.nextSlice(expr.paren);
 
-        // checks to make sure the number of arguments is equal to the arity of the function
-        if(arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+        if (function.isNative()) {
+            // natives only ever see flat strings, see Rope
+            a = Rope.flatten(a);
+            b = Rope.flatten(b);
+            c = Rope.flatten(c);
+            d = Rope.flatten(d);
+            if (arguments != null) arguments.replaceAll(Rope::flatten);
+        }
+
+        try {
+            if (Metrics.ENABLED && function.isNative()) {
+                long start = System.nanoTime();
+                try {
+                    return invoke(function, argCount, a, b, c, d, arguments);
+                } finally {
+                    Metrics.nativeCalls.increment();
+                    Metrics.nativeNanos.add(System.nanoTime() - start);
+                }
+            }
+            return invoke(function, argCount, a, b, c, d, arguments);
+        } catch (StackOverflowError error) {
+            // every Lox call is several Java calls here, so deep recursion runs out of Java stack.
+            // report it like any other runtime error instead of crashing. the VM keeps its call stack on
+            // the heap and can go much deeper.
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        }
+    }
+
+    private Object invoke(LoxCallable function, int argCount, Object a, Object b, Object c, Object d,
+            List<Object> arguments) {
+        switch (argCount) {
+            case 0: return function.call0(this);
+            case 1: return function.call1(this, a);
+            case 2: return function.call2(this, a, b);
+            case 3: return function.call3(this, a, b, c);
+            case 4: return function.call4(this, a, b, c, d);
+            default: return function.call(this, arguments);
         }
-        return function.call(this, arguments);
     }
 
     private Object evaluate(Expr expr) {
+        Object value = expr.accept(this);
+        if (value == UNBOXED) return number;
+        return value;
+    }
+
+    // like evaluate, but a number may come back as UNBOXED with its value in 'number'.
+    // the caller has to read 'number' before evaluating anything else.
+    private Object evaluateUnboxed(Expr expr) {
         return expr.accept(this);
     }
 
+    // used by the specialized nodes to return a number without boxing it
+    Object unboxed(double value) {
+        number = value;
+        return UNBOXED;
+    }
+
+    // the result of calling a LoxCallable from anywhere but visitCallExpr, boxed if the callee returned
+    // it unboxed (see Native)
+    Object boxed(Object value) {
+        return value == UNBOXED ? (Object)number : value;
+    }
+
     private void execute(Stmt stmt) {
+        if (Metrics.ENABLED) Metrics.statements.increment();
+        Profiler.CallStack stack = callStack;
+        if (stack != null) stack.statement(stmt);
         stmt.accept(this);
     }
 
@@ -210,13 +427,28 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        // a block without declarations has no scope of its own, see Resolver.visitBlockStmt
+        if (stmt.slotCount == 0) {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+            return null;
+        }
+
+        executeBlock(stmt.statements, new Environment(environment, stmt.slotCount));
         return null;
     }
 
     @Override 
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        // the value is thrown away so there is no point boxing it
+        evaluateUnboxed(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        loop(stmt.keyword, stmt.slotCount, stmt.initializer, stmt.condition, stmt.increment, stmt.body);
         return null;
     }
 
@@ -224,7 +456,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
     public Void visitFunctionStmt(Stmt.Function stmt) {
         // we simply take a function syntax node and convert it to its runtime representation.
         LoxFunction function = new LoxFunction(stmt);
-        environment.define(stmt.name.lexeme, function);
+
+        // only globals are memoized. a local function is a new object every time its declaration runs,
+        // so its cache would never get to be used.
+        Boolean override = memoize.get(stmt.name.lexeme);
+        boolean memoized = override != null ? override : memoization && stmt.pure;
+        if (memoized && stmt.slot < 0) {
+            define(stmt.name, stmt.slot, new MemoizedFunction(function, stmt.callees, globals, override != null));
+            return null;
+        }
+
+        define(stmt.name, stmt.slot, function);
         return null;
     }
 
@@ -240,50 +482,103 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    // what a print statement does, in both engines
+    void print(Object value) {
+        // numbers are formatted without going through a String, see OutputSink
+        if (value instanceof Double) {
+            out.printNumber((double)value);
+        } else {
+            out.println(stringify(value));
+        }
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+            value = evaluateUnboxed(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        define(stmt.name, stmt.slot, value);
         return null;
     }
 
+    // declarations the Resolver gave a slot are locals; anything else was declared at the top level
+    // value may be UNBOXED: locals keep numbers unboxed, globals live in a map so they get boxed.
+    private void define(Token name, int slot, Object value) {
+        if (slot < 0) {
+            globals.define(name.lexeme, value == UNBOXED ? (Object)number : value);
+        } else if (value == UNBOXED) {
+            environment.defineNumber(slot, number);
+        } else {
+            environment.defineAt(slot, value);
+        }
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while(isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
-        }
+        loop(stmt.keyword, stmt.slotCount, null, stmt.condition, null, stmt.body);
         return null;
     }
 
+    // runs a for or while loop. all the iterations share one environment for the loop's variables, made
+    // here if the Resolver gave the loop a scope (see Resolver.resolveLoop).
+    private void loop(Token keyword, int slotCount, Stmt initializer, Expr condition, Expr increment, Stmt body) {
+        Environment previous = environment;
+        try {
+            if (slotCount > 0) environment = new Environment(environment, slotCount);
+            if (initializer != null) execute(initializer);
+
+            while (isTruthy(evaluate(condition))) {
+                execute(body);
+                // the value is thrown away, like an expression statement's
+                if (increment != null) evaluateUnboxed(increment);
+                if (--budget.tick < 0) budget.nextSlice(keyword);
+            }
+        } finally {
+            environment = previous;
+        }
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        Object value = evaluateUnboxed(expr.value);
+        if (expr.depth < 0) {
+            // assignment can't create a global, so if there is a cell the variable exists
+            Environment.Cell cell = expr.cell;
+            if (cell == null || cell.owner != globals) {
+                cell = globals.cell(expr.name);
+                expr.cell = cell;
+            }
+            cell.set(value == UNBOXED ? (Object)number : value);
+        } else if (value == UNBOXED) {
+            environment.ancestor(expr.depth).defineNumber(expr.slot, number);
+        } else {
+            environment.assignAt(expr.depth, expr.slot, value);
+        }
         // we return the value from the expression because it can be nested inside other expressions.
         return value;
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         // this means that only "false" and "nil" are falsey whereas everything else is truthy
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         // 2 objects are equal if they are both null
         if (a == null && b == null) return true;
         if (a == null) return false;
-        
+
+        // a Rope and a String with the same characters are the same Lox string, so compare their characters
+        if (a instanceof Rope || b instanceof Rope) return Rope.flatten(a).equals(Rope.flatten(b));
+
         // Lox does not support automatic conversion during equality checks so java's built in method will work
         return a.equals(b);
     }
@@ -3,22 +3,65 @@ package lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
-import java.util.List;
+import java.util.Arrays;
 
 public class Lox {
 
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
-    private static final Interpreter interpreter = new Interpreter();
+    // the command line runs everything in one session, so the REPL remembers globals between lines
+    private static LoxSession session;
+    private static boolean useVm = false;
+    private static boolean stream = false;
+    private static long stackBudget = -1;
+    private static String profileFile = null;
+    private static Profiler profiler = null;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
+        while (args.length > 0 && args[0].startsWith("--")) {
+            if (args[0].equals("--vm")) {
+                // Compiles to bytecode and runs it on the VM instead of walking the tree
+                useVm = true;
+            } else if (args[0].equals("--stream")) {
+                // Memory-maps the script and runs each statement as soon as it is parsed
+                stream = true;
+            } else if (args[0].startsWith("--profile=")) {
+                // Samples the program while it runs. Writes a flat profile to stderr and the folded stacks
+                // (for flame graphs) to the file
+                profileFile = args[0].substring("--profile=".length());
+            } else if (args[0].startsWith("--stack=")) {
+                // How many megabytes the VM's call stack may grow to
+                stackBudget = Long.parseLong(args[0].substring("--stack=".length())) * 1024 * 1024;
+            } else {
+                break;
+            }
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        // someone watching a terminal sees each line as it is printed, anything else gets it in big pieces
+        int linesPerFlush = System.console() != null ? 1 : 0;
+        OutputSink out = new OutputSink(System.out, OutputSink.DEFAULT_CAPACITY, linesPerFlush);
+        // spawned functions run on daemon threads, so the JVM can exit while one is still printing.
+        // whatever it got into the buffer by then is written out on the way.
+        Runtime.getRuntime().addShutdownHook(new Thread(out::flush, "lox-flush"));
+        session = new LoxSession(out, useVm);
+        if (stackBudget >= 0) session.setStackBudget(stackBudget);
+        if (profileFile != null) profiler = session.profile(1000);
+
+        if (args.length == 2 && args[0].equals("compile")) {
+            // Writes the parsed script to a .loxc file that runFile picks up instead of parsing it again
+            session.compile(Paths.get(args[1]));
+            exitOnError();
+        } else if (args.length > 1 || (args.length == 1 && args[0].startsWith("--"))) {
             // If more than one command line argument is passed
-            System.out.println("Usage: jlox [script]");
+            System.out.println("Usage: jlox [--vm] [--stream] [--stack=<megabytes>] [--profile=<file>] [script]");
+            System.out.println("       jlox compile [script]");
             System.exit(64);
+        } else if (args.length == 1 && stream) {
+            session.runStreaming(Paths.get(args[0]));
+            exitOnError();
         } else if (args.length == 1) {
             // Runs the Lox code as specified by the file path provided through the command line argument
             runFile(args[0]);
@@ -26,18 +69,33 @@ public class Lox {
             // Runs you into a prompt where you can execute one line at a time
             // This is also called a REPL
             runPrompt();
+            writeProfile();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        session.runFile(Paths.get(path));
+        exitOnError();
+    }
 
-        if (hadError) {
+    private static void writeProfile() throws IOException {
+        if (profiler == null) return;
+
+        profiler.stop();
+        profiler.writeFlat(System.err);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(profileFile)))) {
+            profiler.writeFolded(out);
+        }
+    }
+
+    private static void exitOnError() throws IOException {
+        writeProfile();
+
+        if (session.hadError()) {
             System.exit(65);
         }
 
-        if (hadRuntimeError) System.exit(70);
+        if (session.hadRuntimeError()) System.exit(70);
     }
 
     private static void runPrompt() throws IOException {
@@ -48,48 +106,9 @@ public class Lox {
             System.out.println("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
-
-            hadError = false;
-        }
-    }
-
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+            session.run(line);
 
-        if (hadError) return;
-        interpreter.interpret(statements);
-    }
-
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
-
-    static void runtimeError(RuntimeError error) {
-        System.out.println(error.getMessage() + 
-            "\n[line " + error.token.line + "]");
-
-        hadRuntimeError = true;
-    }
-
-    private static void report(int line, String where, String message) {
-        System.out.println(
-            "[line " + line + "] Error" + where + ": " + message
-        );
-        hadError = true;
-    }
-
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            session.clearError();
         }
     }
 }
-
-
-
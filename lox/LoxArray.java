@@ -0,0 +1,235 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// A growable array, made and used through natives:
+//   array(length, value)      a new array of length elements, all set to value
+//   get(array, index)         the element at index (get also reads maps, see LoxMap)
+//   set(array, index, value)  replaces the element at index with value
+//   length(array)             the number of elements
+//   push(array, value)        adds value to the end
+// Indexes are whole numbers from 0 to length - 1, anything else is a runtime error.
+//
+// As long as every element is a number they are kept in a double[], so an array of numbers costs
+// 8 bytes per element and storing one boxes nothing. The first time something else is stored the
+// elements move to an Object[] for good. get hands a number back unboxed (see Native), so reading an
+// element in arithmetic doesn't allocate either.
+//
+// Arrays are shared between threads like any other value (see Concurrency). Every access takes the
+// array's lock, so threads pushing to the same array never lose an element.
+final class LoxArray {
+    private static final double[] NO_NUMBERS = new double[0];
+
+    // the elements while they are all numbers, null after that
+    private double[] numbers;
+    // the elements once one of them isn't a number, null until then
+    private Object[] values;
+    private int length;
+
+    private LoxArray(int length, Object value) {
+        if (value instanceof Double) {
+            numbers = length == 0 ? NO_NUMBERS : new double[length];
+            if ((double)value != 0) Arrays.fill(numbers, (double)value);
+        } else {
+            values = new Object[length];
+            if (value != null) Arrays.fill(values, value);
+        }
+        this.length = length;
+    }
+
+    // an array of the first length numbers, which it takes over
+    LoxArray(double[] numbers, int length) {
+        this.numbers = numbers;
+        this.length = length;
+    }
+
+    // an array of the first length values, which it takes over
+    LoxArray(Object[] values, int length) {
+        this.values = values;
+        this.length = length;
+    }
+
+    // an array of the values, in a double[] if they are all numbers
+    static LoxArray of(Object[] values) {
+        for (Object value : values) {
+            if (!(value instanceof Double)) return new LoxArray(values, values.length);
+        }
+
+        double[] numbers = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            numbers[i] = (double)values[i];
+        }
+        return new LoxArray(numbers, numbers.length);
+    }
+
+    // a copy of the elements of an array a native was passed, for natives that work on a whole array
+    static Object[] elements(Object array) {
+        return array(array).elements();
+    }
+
+    static void define(Environment globals) {
+        globals.define("array", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object length, Object value) {
+                if (!(length instanceof Double) || (double)length < 0 ||
+                        (double)length > Integer.MAX_VALUE - 8 || (double)length % 1 != 0) {
+                    throw new NativeError("Array length must be a non-negative whole number.");
+                }
+                return new LoxArray((int)(double)length, value);
+            }
+        });
+
+        globals.define("get", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object array, Object index) {
+                if (array instanceof LoxMap) return ((LoxMap)array).get(index);
+                return array(array).get(interpreter, index);
+            }
+        });
+
+        globals.define("set", new Native(3) {
+            @Override
+            public Object call3(Interpreter interpreter, Object array, Object index, Object value) {
+                array(array).set(index, value);
+                return null;
+            }
+        });
+
+        globals.define("length", new Native(1) {
+            @Override
+            public Object call1(Interpreter interpreter, Object array) {
+                return interpreter.unboxed(array(array).length());
+            }
+        });
+
+        globals.define("push", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object array, Object value) {
+                array(array).push(value);
+                return null;
+            }
+        });
+    }
+
+    private synchronized Object get(Interpreter interpreter, Object index) {
+        int i = index(index);
+        if (numbers != null) return interpreter.unboxed(numbers[i]);
+        return values[i];
+    }
+
+    private synchronized void set(Object index, Object value) {
+        int i = index(index);
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[i] = (double)value;
+                return;
+            }
+            unpack();
+        }
+        values[i] = value;
+    }
+
+    private synchronized int length() {
+        return length;
+    }
+
+    private synchronized void push(Object value) {
+        if (length == Integer.MAX_VALUE - 8) throw new NativeError("Array is too long.");
+
+        if (numbers != null && value instanceof Double) {
+            if (length == numbers.length) numbers = Arrays.copyOf(numbers, capacity());
+            numbers[length++] = (double)value;
+            return;
+        }
+
+        if (numbers != null) unpack();
+        if (length == values.length) values = Arrays.copyOf(values, capacity());
+        values[length++] = value;
+    }
+
+    // the size to grow to when the storage is full
+    private int capacity() {
+        return (int)Math.min(Integer.MAX_VALUE - 8, Math.max(8, (long)length * 2));
+    }
+
+    // moves the elements from numbers to values, boxing them once
+    private void unpack() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < length; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    // the element index Lox code passed, checked against the current length
+    private int index(Object index) {
+        if (!(index instanceof Double)) throw new NativeError("Array index must be a whole number.");
+
+        // compared with a cast rather than checking value % 1, which is a slow library call for doubles.
+        // NaN and numbers too large for an int don't survive the cast either.
+        double value = (double)index;
+        int i = (int)value;
+        if (i != value) throw new NativeError("Array index must be a whole number.");
+        if (i < 0 || i >= length) {
+            throw new NativeError("Array index " + i + " is out of bounds for length " + length + ".");
+        }
+        return i;
+    }
+
+    private static LoxArray array(Object array) {
+        if (!(array instanceof LoxArray)) throw new NativeError("Expected an array.");
+        return (LoxArray)array;
+    }
+
+    // the elements the way Lox prints them, e.g. [1, 2.5, nil]. an array that contains itself, directly or
+    // through another array or map, shows up as [...] inside.
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return builder.toString();
+    }
+
+    // enclosing holds the arrays and maps being printed around this one
+    void appendTo(StringBuilder builder, Set<Object> enclosing) {
+        if (!enclosing.add(this)) {
+            builder.append("[...]");
+            return;
+        }
+
+        // copied under the lock, and printed without it, so printing two arrays that contain each other
+        // on two threads can't deadlock
+        Object[] elements = elements();
+        builder.append('[');
+        for (int i = 0; i < elements.length; i++) {
+            if (i > 0) builder.append(", ");
+            append(builder, elements[i], enclosing);
+        }
+        builder.append(']');
+        enclosing.remove(this);
+    }
+
+    // appends one element of an array or map
+    static void append(StringBuilder builder, Object value, Set<Object> enclosing) {
+        if (value instanceof LoxArray) {
+            ((LoxArray)value).appendTo(builder, enclosing);
+        } else if (value instanceof LoxMap) {
+            ((LoxMap)value).appendTo(builder, enclosing);
+        } else {
+            builder.append(Interpreter.stringify(value));
+        }
+    }
+
+    private synchronized Object[] elements() {
+        if (values != null) return Arrays.copyOf(values, length);
+
+        Object[] elements = new Object[length];
+        for (int i = 0; i < length; i++) {
+            elements[i] = numbers[i];
+        }
+        return elements;
+    }
+}
@@ -1,5 +1,7 @@
 package lox;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 // any object in Lox that can be called will implement this interface
@@ -8,4 +10,33 @@ interface LoxCallable {
     Object call(Interpreter interpreter, List<Object> arguments);
 
     int arity();
+
+    // true for natives, which are written in Java, and false for functions written in Lox. a native never
+    // sees a Rope (see Rope), so the engines flatten its string arguments before calling it.
+    default boolean isNative() {
+        return true;
+    }
+
+    // Calls with up to four arguments go through these instead, so the caller never has to build a list.
+    // Only call has to be implemented; these fall back to it. A callable that overrides them as well
+    // (like LoxFunction) gets its arguments without any allocation in between.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, Arrays.asList(a, b, c, d));
+    }
 }
@@ -0,0 +1,91 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs many independent Lox scripts at the same time on a pool of worker threads.
+// Every script gets a fresh LoxSession, so scripts share nothing: not globals, not errors, not output.
+public class LoxEngine implements AutoCloseable {
+    // what a script printed, and whether it failed
+    public static class Result {
+        public final String output;
+        public final boolean hadError;
+        public final boolean hadRuntimeError;
+
+        Result(String output, boolean hadError, boolean hadRuntimeError) {
+            this.output = output;
+            this.hadError = hadError;
+            this.hadRuntimeError = hadRuntimeError;
+        }
+    }
+
+    private final ExecutorService workers;
+    private final boolean useVm;
+    // parsed scripts shared by all workers, or null to parse every script every time
+    private final ScriptCache cache;
+    // applied to every script run after they are set, see LoxSession.setFuel and setTimeout
+    private volatile long fuel = Long.MAX_VALUE;
+    private volatile long timeoutMillis = 0;
+
+    // one worker per core
+    public LoxEngine() {
+        this(Runtime.getRuntime().availableProcessors(), false, null);
+    }
+
+    public LoxEngine(int threads, boolean useVm, ScriptCache cache) {
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.useVm = useVm;
+        this.cache = cache;
+    }
+
+    // queues the script and collects everything it prints into the Result
+    public Future<Result> submit(String source) {
+        return workers.submit(() -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+            LoxSession session = new LoxSession(out, useVm);
+            run(session, source);
+            out.flush();
+            return new Result(buffer.toString(StandardCharsets.UTF_8), session.hadError(), session.hadRuntimeError());
+        });
+    }
+
+    // queues the script with its output going straight to out instead of being collected.
+    // out must be safe to use from a worker thread.
+    public Future<Result> submit(String source, PrintStream out) {
+        return workers.submit(() -> {
+            LoxSession session = new LoxSession(out, useVm);
+            run(session, source);
+            return new Result("", session.hadError(), session.hadRuntimeError());
+        });
+    }
+
+    // limits every script submitted from now on, so one runaway script can't hold a worker forever.
+    // a script that hits either limit ends with a runtime error.
+    public void setLimits(long fuel, long timeoutMillis) {
+        this.fuel = fuel;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private void run(LoxSession session, String source) {
+        session.setFuel(fuel);
+        session.setTimeout(timeoutMillis);
+        if (cache == null) {
+            session.run(source);
+            return;
+        }
+
+        PreparedScript script = cache.prepare(source, session);
+        if (script != null) session.run(script);
+    }
+
+    // scripts that were already submitted still run
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+}
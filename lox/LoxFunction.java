@@ -10,26 +10,100 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        // creates a new environment whose enclosing is the global environment.
-        // each function encapsulates its parameters and thus has its own environment.
-        // recursion would break without each function having its own environment.
-        Environment environment = new Environment(interpreter.globals);
+        Environment environment = frame(interpreter);
         for (int i = 0; i < declaration.params.size(); i++) {
             // this is the code that binds together parameters to arguments.
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+            // the parameters always occupy the first slots, in order.
+            environment.defineAt(i, arguments.get(i));
         }
 
-        // here we actually execute the function body using the new environment.
-        interpreter.executeBlock(declaration.body, environment);
+        return run(interpreter, environment);
+    }
+
+    // the fixed arity versions put the arguments straight into the frame's slots
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(interpreter, frame(interpreter));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment environment = frame(interpreter);
+        environment.defineAt(0, a);
+        return run(interpreter, environment);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment environment = frame(interpreter);
+        environment.defineAt(0, a);
+        environment.defineAt(1, b);
+        return run(interpreter, environment);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment environment = frame(interpreter);
+        environment.defineAt(0, a);
+        environment.defineAt(1, b);
+        environment.defineAt(2, c);
+        return run(interpreter, environment);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Environment environment = frame(interpreter);
+        environment.defineAt(0, a);
+        environment.defineAt(1, b);
+        environment.defineAt(2, c);
+        environment.defineAt(3, d);
+        return run(interpreter, environment);
+    }
+
+    // creates a new environment whose enclosing is the global environment.
+    // each function encapsulates its parameters and thus has its own environment.
+    // recursion would break without each function having its own environment.
+    // the Resolver sized the frame to hold the parameters plus the body's top level locals.
+    private Environment frame(Interpreter interpreter) {
+        return new Environment(interpreter.globals, declaration.slotCount);
+    }
+
+    private Object run(Interpreter interpreter, Environment environment) {
+        if (Metrics.ENABLED) Metrics.calls.increment();
+        Profiler.CallStack stack = interpreter.callStack;
+        if (stack == null) {
+            // here we actually execute the function body using the new environment.
+            interpreter.executeBlock(declaration.body, environment);
+            return null;
+        }
+
+        // a profiler is watching, so tell it which function we're in. the same stack is popped even if the
+        // profiler is detached in the meantime.
+        stack.push(declaration);
+        try {
+            interpreter.executeBlock(declaration.body, environment);
+        } finally {
+            stack.pop();
+        }
         return null;
     }
 
+    @Override
+    public boolean isNative() {
+        return false;
+    }
+
     // used by the visitCallExpr() to ensure match between params and arguments
     @Override
     public int arity() {
         return declaration.params.size();
     }
 
+    // the name it was declared with
+    String name() {
+        return declaration.name.lexeme;
+    }
+
     @Override
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
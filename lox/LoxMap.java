@@ -0,0 +1,318 @@
+package lox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// A hash map from Lox values to Lox values, made and used through natives:
+//   map()                  a new empty map
+//   put(map, key, value)   sets the value for key
+//   get(map, key)          the value for key, nil if there is none
+//   has(map, key)          whether key has a value, even a nil one
+//   remove(map, key)       removes key and returns the value it had, nil if there was none
+//   size(map)              the number of keys
+//   keys(map)              an array of the keys, to loop over with get. the order is arbitrary.
+// Keys are the same when == says they are (see Interpreter.isEqual): numbers and strings by value,
+// everything else by identity.
+//
+// The entries live in a few flat arrays instead of an object each. Slots are found by open addressing with
+// Robin Hood probing: an entry that has moved further from its home slot takes the place of one that moved
+// less, so no key is ever far from home, a lookup for a missing key can stop early, and removing a key just
+// shifts the entries after it back instead of leaving a tombstone. Every slot keeps its key's hash, so a
+// probe only compares keys whose hashes match and growing the map never hashes a key again. While every key
+// is a number the keys are kept in a double[], compared by their bits.
+//
+// Maps are shared between threads like arrays, and like them take their lock on every access.
+final class LoxMap {
+    private static final int MIN_CAPACITY = 8;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // each slot's hash, 0 for an empty slot (see hash). the other arrays have the same length, a power of 2.
+    private int[] hashes = new int[MIN_CAPACITY];
+    // the keys while they are all numbers, null after that
+    private double[] numberKeys = new double[MIN_CAPACITY];
+    // the keys once one of them isn't a number, null until then
+    private Object[] keys;
+    private Object[] values = new Object[MIN_CAPACITY];
+    private int size = 0;
+
+    static void define(Environment globals) {
+        globals.define("map", new Native(0) {
+            @Override
+            public Object call0(Interpreter interpreter) {
+                return new LoxMap();
+            }
+        });
+
+        globals.define("put", new Native(3) {
+            @Override
+            public Object call3(Interpreter interpreter, Object map, Object key, Object value) {
+                map(map).put(key, value);
+                return null;
+            }
+        });
+
+        globals.define("has", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object map, Object key) {
+                return map(map).has(key);
+            }
+        });
+
+        globals.define("remove", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object map, Object key) {
+                return map(map).remove(key);
+            }
+        });
+
+        globals.define("size", new Native(1) {
+            @Override
+            public Object call1(Interpreter interpreter, Object map) {
+                return interpreter.unboxed(map(map).size());
+            }
+        });
+
+        globals.define("keys", new Native(1) {
+            @Override
+            public Object call1(Interpreter interpreter, Object map) {
+                return map(map).keys();
+            }
+        });
+    }
+
+    // see LoxArray's get native
+    synchronized Object get(Object key) {
+        int slot = find(key, hash(key));
+        return slot < 0 ? null : values[slot];
+    }
+
+    synchronized boolean has(Object key) {
+        return find(key, hash(key)) >= 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void put(Object key, Object value) {
+        int hash = hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+
+        if (numberKeys != null && !(key instanceof Double)) unpack();
+        // at most 7/8 full. Robin Hood probing keeps lookups short even then.
+        if (size >= hashes.length - (hashes.length >>> 3)) grow();
+        insert(hash, key, numberKeys != null ? (double)key : 0, value);
+        size++;
+    }
+
+    synchronized Object remove(Object key) {
+        int slot = find(key, hash(key));
+        if (slot < 0) return null;
+        Object removed = values[slot];
+
+        // every entry after it that isn't in its home slot moves back one, closing the gap
+        int mask = hashes.length - 1;
+        int next = (slot + 1) & mask;
+        while (hashes[next] != 0 && distance(next, hashes[next], mask) > 0) {
+            hashes[slot] = hashes[next];
+            if (numberKeys != null) {
+                numberKeys[slot] = numberKeys[next];
+            } else {
+                keys[slot] = keys[next];
+            }
+            values[slot] = values[next];
+            slot = next;
+            next = (next + 1) & mask;
+        }
+
+        hashes[slot] = 0;
+        if (keys != null) keys[slot] = null;
+        values[slot] = null;
+        size--;
+        return removed;
+    }
+
+    synchronized LoxArray keys() {
+        if (numberKeys != null) {
+            double[] numbers = new double[size];
+            int count = 0;
+            for (int slot = 0; slot < hashes.length; slot++) {
+                if (hashes[slot] != 0) numbers[count++] = numberKeys[slot];
+            }
+            return new LoxArray(numbers, count);
+        }
+
+        Object[] found = new Object[size];
+        int count = 0;
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0) found[count++] = keys[slot];
+        }
+        return new LoxArray(found, count);
+    }
+
+    // the slot holding key, or -1 if it isn't in the map
+    private int find(Object key, int hash) {
+        boolean number = key instanceof Double;
+        // while all the keys are numbers nothing else can be one
+        if (numberKeys != null && !number) return -1;
+        long bits = number ? Double.doubleToLongBits((double)key) : 0;
+
+        int mask = hashes.length - 1;
+        for (int slot = hash & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            int found = hashes[slot];
+            // an entry closer to its home than we are to ours means key would have taken its slot
+            if (found == 0 || distance(slot, found, mask) < distance) return -1;
+            if (found != hash) continue;
+
+            if (numberKeys != null) {
+                if (Double.doubleToLongBits(numberKeys[slot]) == bits) return slot;
+            } else if (Interpreter.isEqual(keys[slot], key)) {
+                return slot;
+            }
+        }
+    }
+
+    // puts an entry that isn't in the map yet into a slot, moving others along as Robin Hood probing says.
+    // number is the key when the keys are numbers, key otherwise.
+    private void insert(int hash, Object key, double number, Object value) {
+        int mask = hashes.length - 1;
+        for (int slot = hash & mask, distance = 0; ; slot = (slot + 1) & mask, distance++) {
+            int found = hashes[slot];
+            if (found == 0) {
+                hashes[slot] = hash;
+                if (numberKeys != null) {
+                    numberKeys[slot] = number;
+                } else {
+                    keys[slot] = key;
+                }
+                values[slot] = value;
+                return;
+            }
+
+            int foundDistance = distance(slot, found, mask);
+            if (foundDistance < distance) {
+                // the entry here is closer to home than ours, so ours takes the slot and that one moves on
+                hashes[slot] = hash;
+                hash = found;
+                if (numberKeys != null) {
+                    double displaced = numberKeys[slot];
+                    numberKeys[slot] = number;
+                    number = displaced;
+                } else {
+                    Object displaced = keys[slot];
+                    keys[slot] = key;
+                    key = displaced;
+                }
+                Object displaced = values[slot];
+                values[slot] = value;
+                value = displaced;
+                distance = foundDistance;
+            }
+        }
+    }
+
+    private void grow() {
+        if (hashes.length == MAX_CAPACITY) throw new NativeError("Map is too large.");
+
+        int[] oldHashes = hashes;
+        double[] oldNumberKeys = numberKeys;
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        int capacity = oldHashes.length * 2;
+        hashes = new int[capacity];
+        if (oldNumberKeys != null) {
+            numberKeys = new double[capacity];
+        } else {
+            keys = new Object[capacity];
+        }
+        values = new Object[capacity];
+
+        for (int slot = 0; slot < oldHashes.length; slot++) {
+            if (oldHashes[slot] == 0) continue;
+            insert(oldHashes[slot], oldKeys != null ? oldKeys[slot] : null,
+                oldNumberKeys != null ? oldNumberKeys[slot] : 0, oldValues[slot]);
+        }
+    }
+
+    // moves the keys from numberKeys to keys, boxing them once
+    private void unpack() {
+        keys = new Object[hashes.length];
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0) keys[slot] = numberKeys[slot];
+        }
+        numberKeys = null;
+    }
+
+    // how many slots past its home slot the entry in slot is
+    private static int distance(int slot, int hash, int mask) {
+        return (slot - hash) & mask;
+    }
+
+    // the same for keys Lox considers equal. strings keep their hash once it has been computed, so hashing
+    // one again is just reading a field. the hash is spread over all the bits, since the slot comes from the
+    // low ones, and is never 0, which marks an empty slot.
+    private static int hash(Object key) {
+        int hash;
+        if (key instanceof Double) {
+            long bits = Double.doubleToLongBits((double)key);
+            hash = (int)(bits ^ (bits >>> 32));
+        } else {
+            hash = key == null ? 0 : key.hashCode();
+        }
+        hash *= 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static LoxMap map(Object map) {
+        if (!(map instanceof LoxMap)) throw new NativeError("Expected a map.");
+        return (LoxMap)map;
+    }
+
+    // the entries the way Lox prints them, e.g. {a: 1, 2: nil}. a map that contains itself, directly or
+    // through another map or array, shows up as {...} inside.
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return builder.toString();
+    }
+
+    // enclosing holds the arrays and maps being printed around this one
+    void appendTo(StringBuilder builder, Set<Object> enclosing) {
+        if (!enclosing.add(this)) {
+            builder.append("{...}");
+            return;
+        }
+
+        // copied under the lock and printed without it, see LoxArray
+        Object[] entries = entries();
+        builder.append('{');
+        for (int i = 0; i < entries.length; i += 2) {
+            if (i > 0) builder.append(", ");
+            LoxArray.append(builder, entries[i], enclosing);
+            builder.append(": ");
+            LoxArray.append(builder, entries[i + 1], enclosing);
+        }
+        builder.append('}');
+        enclosing.remove(this);
+    }
+
+    // the keys and values, one after the other
+    private synchronized Object[] entries() {
+        Object[] entries = new Object[size * 2];
+        int count = 0;
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] == 0) continue;
+            entries[count++] = numberKeys != null ? (Object)numberKeys[slot] : keys[slot];
+            entries[count++] = values[slot];
+        }
+        return entries;
+    }
+}
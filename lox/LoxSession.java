@@ -0,0 +1,208 @@
+package lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+// One independent Lox program run: its own globals, its own errors and its own output.
+// The command line uses a single session; embedders can create as many as they like and run them
+// side by side (see LoxEngine). A session itself must only be used by one thread at a time.
+public class LoxSession {
+    private final OutputSink out;
+    private final ErrorReporter reporter;
+    private final Interpreter interpreter;
+    // the bytecode VM shares the interpreter's globals. it is only used when useVm is set.
+    private final VM vm;
+    private final boolean useVm;
+
+    public LoxSession(PrintStream out) {
+        this(out, false);
+    }
+
+    // everything the program prints, and every error it reports, goes to out. it is buffered and only
+    // written to out when the buffer fills up or a run ends.
+    public LoxSession(PrintStream out, boolean useVm) {
+        this(new OutputSink(out), useVm);
+    }
+
+    // for choosing when the output is flushed, or sending it somewhere that isn't a PrintStream
+    public LoxSession(OutputSink out, boolean useVm) {
+        this.out = out;
+        this.reporter = new ErrorReporter(out);
+        this.interpreter = new Interpreter(reporter, out);
+        this.vm = new VM(interpreter);
+        this.useVm = useVm;
+    }
+
+    public boolean hadError() {
+        return reporter.hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return reporter.hadRuntimeError;
+    }
+
+    // how much memory the VM's call stack may use before a call fails with "Stack overflow."
+    // the tree-walking interpreter recurses on the Java stack instead, so this doesn't apply to it.
+    public void setStackBudget(long bytes) {
+        vm.stackBudget = bytes;
+    }
+
+    // whether pure functions are memoized. off by default, see MemoizedFunction. it applies to functions
+    // declared after the call.
+    public void setMemoization(boolean enabled) {
+        interpreter.memoization = enabled;
+    }
+
+    // memoizes (or never memoizes) the function with this name, whatever the purity analysis thinks of it.
+    // forcing it on is a promise that the function has no effects and doesn't depend on anything that changes.
+    public void memoize(String function, boolean enabled) {
+        interpreter.memoize.put(function, enabled);
+    }
+
+    // starts sampling where this session's programs spend their time, until Profiler.stop.
+    // only the tree-walking interpreter keeps a call stack the profiler can see.
+    public Profiler profile(long intervalMicros) {
+        return new Profiler(interpreter, intervalMicros * 1000);
+    }
+
+    // how many loop iterations and calls, together, one run may make before it is stopped with a runtime
+    // error. Long.MAX_VALUE means no limit, which is the default.
+    public void setFuel(long units) {
+        interpreter.budget.fuel = units;
+    }
+
+    // how long one run may take before it is stopped with a runtime error, or 0 for no limit (the default).
+    // checked at the same points as fuel, so a single call into a slow native can overrun it.
+    public void setTimeout(long millis) {
+        interpreter.budget.timeoutNanos = millis <= 0 ? Budget.UNLIMITED : millis * 1_000_000;
+    }
+
+    // the REPL keeps going after a syntax error, so it forgets about it before the next line
+    public void clearError() {
+        reporter.hadError = false;
+    }
+
+    public void run(String source) {
+        PreparedScript script = prepare(source);
+        if (script == null) return;
+
+        run(script);
+    }
+
+    // scans, parses, optimizes and resolves the source without running it.
+    // returns null if there was a syntax error, which is reported like any other error in this session.
+    public PreparedScript prepare(String source) {
+        Scanner scanner = new Scanner(Source.of(source), reporter);
+        List<Token> tokens = scanner.scanTokens();
+        Parser parser = new Parser(tokens.iterator(), reporter);
+        List<Stmt> statements = parser.parse();
+
+        if (reporter.hadError) {
+            out.flush();
+            return null;
+        }
+
+        return new PreparedScript(resolve(statements), source.length());
+    }
+
+    // runs a script prepared by this or any other session. everything it printed has been written out by
+    // the time this returns. a function it spawned that is still running has its output written out when it
+    // finishes (see Concurrency.spawn). the script forgets this session's globals once the run is over.
+    public void run(PreparedScript script) {
+        interpreter.budget.start();
+        try {
+            if (useVm) {
+                Chunk chunk = script.chunk(reporter);
+                if (chunk != null) vm.interpret(chunk);
+            } else {
+                interpreter.interpret(script.statements);
+            }
+        } finally {
+            script.forget();
+            out.flush();
+        }
+    }
+
+    // runs a script file, or the .loxc snapshot of it if there is one that is up to date.
+    // a .loxc can also be run on its own.
+    public void runFile(Path path) throws IOException {
+        if (path.getFileName().toString().endsWith(Snapshot.EXTENSION)) {
+            run(new PreparedScript(resolve(Snapshot.read(path)), (int)Files.size(path)));
+            return;
+        }
+
+        List<Stmt> statements = Snapshot.readIfFresh(path, Snapshot.pathFor(path));
+        if (statements != null) {
+            run(new PreparedScript(resolve(statements), (int)Files.size(path)));
+            return;
+        }
+
+        byte[] bytes = Files.readAllBytes(path);
+        run(new String(bytes, Charset.defaultCharset()));
+    }
+
+    // parses the script and writes its syntax tree to a .loxc next to it, so later runs of the same
+    // script don't have to scan and parse it again. nothing is written if it has a syntax error.
+    public void compile(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        PreparedScript script = prepare(new String(bytes, Charset.defaultCharset()));
+        if (script == null) return;
+
+        Snapshot.write(script.statements, path, Snapshot.pathFor(path));
+    }
+
+    // Instead of reading the whole file into a String and scanning and parsing all of it up front, the file
+    // is memory-mapped and the Parser pulls tokens from the Scanner as it needs them. Each top level
+    // statement runs as soon as it has been parsed, so nothing but the current statement is held in memory.
+    // Unlike run, statements before a syntax error have already run by the time the error is found.
+    public void runStreaming(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            Scanner scanner = new Scanner(Source.map(channel, Charset.defaultCharset()), reporter);
+            Parser parser = new Parser(scanner.tokenStream(), reporter);
+            // the whole file is one run as far as the limits go, not each statement
+            interpreter.budget.start();
+
+            while (parser.hasNext()) {
+                Stmt statement = parser.parseNext();
+                // after a syntax error keep parsing to report any others, but don't run anything else
+                if (reporter.hadError || reporter.hadRuntimeError) continue;
+
+                execute(Collections.singletonList(statement));
+                if (reporter.hadRuntimeError) break;
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    private void execute(List<Stmt> statements) {
+        statements = resolve(statements);
+
+        if (useVm) {
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    private static List<Stmt> resolve(List<Stmt> statements) {
+        // folds constant expressions and drops branches that can never run
+        Optimizer optimizer = new Optimizer();
+        statements = optimizer.optimize(statements);
+
+        // works out where every local variable lives before we start running anything
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+
+        // needs to know which variables are locals, so it runs after the Resolver
+        PurityAnalyzer purity = new PurityAnalyzer();
+        purity.analyze(statements);
+        return statements;
+    }
+}
@@ -0,0 +1,214 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A pure global function that remembers the arguments it has been called with. Calling it again with the
+// same arguments (equal the way == compares them) returns the remembered result without running the body.
+// Since a pure function has no effects, the only thing that is skipped is the time it would have taken.
+//
+// Lox has no return statement yet, so every result is nil and the cache can only skip work that nothing
+// can observe. That rarely pays for the lookup on every call, so functions the PurityAnalyzer found to be
+// pure are only memoized when the session asks for it (LoxSession.setMemoization). A script can opt a
+// single global function in or out with memoize(fn, true) or memoize(fn, false), and the embedder can do
+// the same by name with LoxSession.memoize. Once functions can return values this should be on by default.
+//
+// The body may call other global functions, and those can be redefined. So the cache is only used while
+// every callee is itself a MemoizedFunction, and it is emptied whenever any global holding one is
+// overwritten (Environment.redefinitions counts those). A cache that hardly ever hits is switched off
+// after the first WARMUP calls, so functions that are always called with new arguments don't pay for it.
+// Spawned threads can call the same function at once, so the cache is only touched while holding its lock.
+// The body runs outside of it.
+class MemoizedFunction implements LoxCallable {
+    // how many argument lists a function remembers before it forgets the least recently used
+    static final int CAPACITY = 4096;
+    private static final int WARMUP = 1024;
+    // getOrDefault's answer for arguments that aren't in the cache, since null is a valid result
+    private static final Object MISSING = new Object();
+
+    private final LoxFunction function;
+    private final List<Token> callees;
+    private final Environment globals;
+    // memoized because the user asked for it: the callees aren't checked
+    private final boolean forced;
+
+    // the value of globals.redefinitions when the callees were found to be pure, or -1 if they weren't
+    private int checked = -1;
+    // null once the cache has been switched off
+    private volatile Map<Object, Object> results = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private int calls = 0;
+    private int hits = 0;
+
+    MemoizedFunction(LoxFunction function, List<Token> callees, Environment globals, boolean forced) {
+        this.function = function;
+        this.callees = callees;
+        this.globals = globals;
+        this.forced = forced;
+    }
+
+    //   memoize(fn, enabled)   memoizes the global function fn, or stops memoizing it. like
+    //                          LoxSession.memoize, turning it on is a promise that fn has no effects.
+    // The VM never memoizes, so for its functions this does nothing.
+    static void define(Environment globals) {
+        globals.define("memoize", new Native(2) {
+            @Override
+            public Object call2(Interpreter interpreter, Object function, Object enabled) {
+                if (!(enabled instanceof Boolean)) throw new NativeError("Expected true or false.");
+                memoize(interpreter.globals, function, (boolean)enabled);
+                return null;
+            }
+        });
+    }
+
+    private static void memoize(Environment globals, Object function, boolean enabled) {
+        if (function instanceof VM.Function) return;
+
+        LoxFunction plain;
+        if (function instanceof MemoizedFunction) {
+            plain = ((MemoizedFunction)function).function;
+        } else if (function instanceof LoxFunction) {
+            plain = (LoxFunction)function;
+        } else {
+            throw new NativeError("Can only memoize functions.");
+        }
+
+        // the global is what calls go through, so that is what gets replaced
+        Environment.Cell cell = globals.find(plain.name());
+        if (cell == null || cell.value != function) throw new NativeError("Can only memoize global functions.");
+
+        if (!enabled) {
+            cell.set(plain);
+        } else if (!(function instanceof MemoizedFunction) || !((MemoizedFunction)function).forced) {
+            // forced, so the callees are never looked at
+            cell.set(new MemoizedFunction(plain, Collections.emptyList(), globals, true));
+        }
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (!active()) return function.call(interpreter, arguments);
+
+        // the caller's list may be reused, so the key is a copy
+        Object key = Arrays.asList(arguments.toArray());
+        Object result = lookup(key);
+        if (result != MISSING) return result;
+        return remember(key, function.call(interpreter, arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        if (!active()) return function.call0(interpreter);
+
+        Object key = Collections.emptyList();
+        Object result = lookup(key);
+        if (result != MISSING) return result;
+        return remember(key, function.call0(interpreter));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        if (!active()) return function.call1(interpreter, a);
+
+        // a function always gets the same number of arguments, so a single one can be its own key
+        Object result = lookup(a);
+        if (result != MISSING) return result;
+        return remember(a, function.call1(interpreter, a));
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        if (!active()) return function.call2(interpreter, a, b);
+
+        Object key = Arrays.asList(a, b);
+        Object result = lookup(key);
+        if (result != MISSING) return result;
+        return remember(key, function.call2(interpreter, a, b));
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        if (!active()) return function.call3(interpreter, a, b, c);
+
+        Object key = Arrays.asList(a, b, c);
+        Object result = lookup(key);
+        if (result != MISSING) return result;
+        return remember(key, function.call3(interpreter, a, b, c));
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        if (!active()) return function.call4(interpreter, a, b, c, d);
+
+        Object key = Arrays.asList(a, b, c, d);
+        Object result = lookup(key);
+        if (result != MISSING) return result;
+        return remember(key, function.call4(interpreter, a, b, c, d));
+    }
+
+    @Override
+    public boolean isNative() {
+        return false;
+    }
+
+    @Override
+    public int arity() {
+        return function.arity();
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+
+    // true if the cache can be used for this call
+    private boolean active() {
+        // a cache that has been switched off stays off, so most calls to a function that doesn't pay never
+        // take the lock
+        if (results == null) return false;
+
+        synchronized (this) {
+            if (results == null) return false;
+            if (forced || checked == globals.redefinitions) return true;
+
+            // first call, or some memoized function was redefined since the callees were last checked.
+            // what is in the cache may have been worked out with the old definition.
+            results.clear();
+            for (Token callee : callees) {
+                Environment.Cell cell = globals.find(callee.lexeme);
+                // check again on the next call, the callee may be defined (or redefined) by then
+                if (cell == null || !(cell.value instanceof MemoizedFunction)) return false;
+            }
+
+            checked = globals.redefinitions;
+            return true;
+        }
+    }
+
+    private synchronized Object lookup(Object key) {
+        // another thread switched the cache off since this one checked
+        if (results == null) return MISSING;
+
+        Object result = results.getOrDefault(key, MISSING);
+        if (result != MISSING) hits++;
+
+        if (++calls == WARMUP && hits < WARMUP / 8) {
+            // not worth it. the result we just looked up is still fine to use.
+            results = null;
+        }
+        return result;
+    }
+
+    // only reached when the body finished normally. a call that raised an error isn't remembered.
+    private synchronized Object remember(Object key, Object result) {
+        if (results != null) results.put(key, result);
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+package lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters for watching the interpreter at runtime over JMX (see MetricsMXBean).
+// Every place that counts something checks ENABLED first. It is a static final read once at startup, so when
+// metrics are off the JIT folds each check to false and drops the counting code altogether.
+// LongAdders keep sessions running on different threads from fighting over the same counter.
+class Metrics implements MetricsMXBean {
+    static final boolean ENABLED = Boolean.getBoolean("lox.metrics");
+
+    static final LongAdder calls = new LongAdder();
+    static final LongAdder environments = new LongAdder();
+    static final LongAdder lookups = new LongAdder();
+    static final LongAdder chainDepth = new LongAdder();
+    static final LongAdder runtimeErrors = new LongAdder();
+    static final LongAdder statements = new LongAdder();
+    static final LongAdder nativeCalls = new LongAdder();
+    static final LongAdder nativeNanos = new LongAdder();
+
+    static {
+        // the first time anything checks ENABLED
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("lox:type=Metrics"));
+            } catch (JMException error) {
+                // e.g. another copy of the interpreter in the same JVM got there first. counting still works.
+            }
+        }
+    }
+
+    private Metrics() {}
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getEnvironmentsCreated() {
+        return environments.sum();
+    }
+
+    @Override
+    public long getVariableLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public double getAverageChainDepth() {
+        long count = lookups.sum();
+        return count == 0 ? 0 : (double)chainDepth.sum() / count;
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+        return statements.sum();
+    }
+
+    @Override
+    public long getNativeCalls() {
+        return nativeCalls.sum();
+    }
+
+    @Override
+    public long getNativeTimeNanos() {
+        return nativeNanos.sum();
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        environments.reset();
+        lookups.reset();
+        chainDepth.reset();
+        runtimeErrors.reset();
+        statements.reset();
+        nativeCalls.reset();
+        nativeNanos.reset();
+    }
+}
@@ -0,0 +1,29 @@
+package lox;
+
+// What the interpreter publishes over JMX as lox:type=Metrics, when run with -Dlox.metrics=true.
+// All counts are since startup (or the last reset) and cover every session in the process.
+public interface MetricsMXBean {
+    // calls to Lox functions, in either engine
+    long getCalls();
+
+    // local scopes created: one per call and one per block that runs
+    long getEnvironmentsCreated();
+
+    // variables read by the tree-walking interpreter
+    long getVariableLookups();
+
+    // how many enclosing scopes a local variable read has to walk out through, on average
+    double getAverageChainDepth();
+
+    long getRuntimeErrors();
+
+    // statements executed by the tree-walking interpreter
+    long getStatementsExecuted();
+
+    // calls to functions implemented in Java, and the time spent in them
+    long getNativeCalls();
+
+    long getNativeTimeNanos();
+
+    void reset();
+}
@@ -0,0 +1,37 @@
+package lox;
+
+import java.util.List;
+
+// Base class for the natives (see Concurrency and LoxArray). A native with a fixed arity implements the
+// matching callN, the list version is never used for it.
+//
+// A native may return interpreter.unboxed(value) instead of a Double. The tree-walker takes the number
+// from there without boxing it, and any other caller has to pass the result through interpreter.boxed.
+abstract class Native implements LoxCallable {
+    private final int arity;
+
+    Native(int arity) {
+        this.arity = arity;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        switch (arity) {
+            case 0: return call0(interpreter);
+            case 1: return call1(interpreter, arguments.get(0));
+            case 2: return call2(interpreter, arguments.get(0), arguments.get(1));
+            case 3: return call3(interpreter, arguments.get(0), arguments.get(1), arguments.get(2));
+            default: throw new IllegalStateException("Native with arity " + arity + ".");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,9 @@
+package lox;
+
+// Thrown by a native function that was called with arguments it can't use. A native doesn't know where it
+// was called from, so the engine that made the call turns this into a RuntimeError at the call's paren.
+class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,62 @@
+package lox;
+
+// The instruction set of the bytecode VM. Each instruction is one byte, optionally followed by operands.
+// Operands marked (u16) are two bytes, big-endian.
+final class OpCode {
+    private OpCode() {}
+
+    // pushes constants[u16]
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+
+    // globals are looked up by name. the operand (u16) is a constant holding the name Token.
+    static final byte GET_GLOBAL = 5;
+    static final byte DEFINE_GLOBAL = 6;
+    static final byte SET_GLOBAL = 7;
+
+    // locals use the depth (u16) and slot (u16) the Resolver worked out
+    static final byte GET_LOCAL = 8;
+    static final byte SET_LOCAL = 9;
+    // only needs a slot (u16) since declarations always go in the innermost scope
+    static final byte DEFINE_LOCAL = 10;
+
+    static final byte EQUAL = 11;
+    static final byte NOT_EQUAL = 12;
+    static final byte GREATER = 13;
+    static final byte GREATER_EQUAL = 14;
+    static final byte LESS = 15;
+    static final byte LESS_EQUAL = 16;
+    static final byte ADD = 17;
+    static final byte SUBTRACT = 18;
+    static final byte MULTIPLY = 19;
+    static final byte DIVIDE = 20;
+    static final byte NOT = 21;
+    static final byte NEGATE = 22;
+
+    static final byte PRINT = 23;
+
+    // jumps take a forward offset (u16). JUMP_IF_FALSE leaves the condition on the stack.
+    static final byte JUMP = 24;
+    static final byte JUMP_IF_FALSE = 25;
+    // jumps backwards by an offset (u16)
+    static final byte LOOP = 26;
+
+    // calls the callee sitting under argCount (u8) arguments
+    static final byte CALL = 27;
+    // creates a function from the Chunk in constants[u16]
+    static final byte FUNCTION = 28;
+
+    // opens a block scope with the given number of slots (u16) and closes the innermost one
+    static final byte PUSH_SCOPE = 29;
+    static final byte POP_SCOPE = 30;
+
+    static final byte RETURN = 31;
+
+    // a call that is the last thing its function does, with argCount (u8) arguments. a Lox function
+    // takes over the caller's frame instead of pushing a new one, so tail recursion runs in constant space.
+    // any other callee is called as usual. either way the caller then returns, the same as RETURN.
+    static final byte TAIL_CALL = 32;
+}
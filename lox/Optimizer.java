@@ -0,0 +1,203 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The Optimizer rewrites the syntax tree before it is resolved and run.
+// It folds expressions whose operands are all literals into a single literal, and removes
+// branches and loops that can never run because their condition is a literal.
+// Anything that would raise a runtime error is left alone so the error still happens, at the same
+// point and on the same line, when the program runs.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            // a statement that can never do anything is dropped altogether
+            if (result != null) optimized.add(result);
+        }
+
+        return optimized;
+    }
+
+    // returns null if the statement was removed
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // for places where the grammar needs a statement even if the original one was removed
+    private Stmt optimizeOrEmpty(Stmt stmt) {
+        Stmt result = optimize(stmt);
+        if (result == null) return new Stmt.Block(new ArrayList<Stmt>());
+        return result;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal)expr).value;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(optimize(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        // evaluating a literal has no effect
+        if (isLiteral(expression)) return null;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        Expr condition = optimize(stmt.condition);
+
+        // a loop whose condition is always falsey never runs its body, but it still runs its initializer.
+        // a var initializer keeps the loop so the variable stays scoped to it.
+        if (isLiteral(condition) && !Interpreter.isTruthy(valueOf(condition)) &&
+                !(initializer instanceof Stmt.Var)) {
+            return initializer;
+        }
+
+        Expr increment = stmt.increment == null ? null : optimize(stmt.increment);
+        // evaluating a literal has no effect
+        if (increment != null && isLiteral(increment)) increment = null;
+        return new Stmt.For(stmt.keyword, initializer, condition, increment, optimizeOrEmpty(stmt.body));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return new Stmt.Function(stmt.name, stmt.params, optimize(stmt.body));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        // only one branch can ever run, so the other one is removed along with the test
+        if (isLiteral(condition)) {
+            if (Interpreter.isTruthy(valueOf(condition))) return optimize(stmt.thenBranch);
+            if (stmt.elseBranch != null) return optimize(stmt.elseBranch);
+            return null;
+        }
+
+        Stmt thenBranch = optimizeOrEmpty(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        // a loop whose condition is always falsey never runs its body
+        if (isLiteral(condition) && !Interpreter.isTruthy(valueOf(condition))) return null;
+
+        return new Stmt.While(stmt.keyword, condition, optimizeOrEmpty(stmt.body));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (isLiteral(left) && isLiteral(right)) {
+            try {
+                // a literal is always a flat String, a Rope can't be written to a snapshot or a Chunk's constants
+                return new Expr.Literal(Rope.flatten(Interpreter.binary(expr.operator, valueOf(left), valueOf(right))));
+            } catch (RuntimeError error) {
+                // e.g. 1 + "a". keep the expression so the error is raised when it actually runs
+            }
+        }
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        // the grouping only mattered to the Parser, a literal doesn't need it
+        if (isLiteral(expression)) return expression;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // with a literal on the left we already know whether it short circuits.
+        // either the left value is the result or the right expression is.
+        if (isLiteral(left)) {
+            boolean truthy = Interpreter.isTruthy(valueOf(left));
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : right;
+        }
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (isLiteral(right)) {
+            try {
+                return new Expr.Literal(Interpreter.unary(expr.operator, valueOf(right)));
+            } catch (RuntimeError error) {
+                // e.g. -"a". keep the expression so the error is raised when it actually runs
+            }
+        }
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
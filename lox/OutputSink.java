@@ -0,0 +1,154 @@
+package lox;
+
+import java.io.PrintStream;
+import java.nio.CharBuffer;
+
+// Where a session's output goes: everything the program prints and every error it reports.
+// Calling println on a PrintStream takes its lock for each line, and System.out also flushes each line
+// all the way to the OS. The sink collects the lines in a buffer instead and hands them to the stream in
+// large pieces, when the buffer is full, every linesPerFlush lines if that is set, and at the end of every
+// run (see LoxSession). The stream still does the encoding, so the bytes that come out are exactly the
+// ones println would have written.
+//
+// To send the output somewhere other than a PrintStream, override write.
+public class OutputSink {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final String NEWLINE = System.lineSeparator();
+    // the longest number appendNumber writes itself: a sign, ten digits and a point
+    private static final int NUMBER_CHARS = 12;
+    // 10 to the power of each number of decimals appendNumber handles
+    private static final double[] SCALES = { 1, 10, 100, 1000 };
+
+    private final PrintStream out;
+    private final char[] buffer;
+    private int length = 0;
+    private final int linesPerFlush;
+    private int lines = 0;
+    // appendNumber writes digits back to front in here
+    private final char[] digits = new char[NUMBER_CHARS];
+
+    public OutputSink(PrintStream out) {
+        this(out, DEFAULT_CAPACITY, 0);
+    }
+
+    // linesPerFlush 0 means lines are only written out when the buffer fills up or the run ends.
+    // 1 shows every line as soon as it is printed, which is what someone watching a terminal wants.
+    public OutputSink(PrintStream out, int capacity, int linesPerFlush) {
+        this.out = out;
+        // a number and a line separator always fit
+        this.buffer = new char[Math.max(capacity, NUMBER_CHARS + NEWLINE.length())];
+        this.linesPerFlush = linesPerFlush;
+    }
+
+    // spawned threads print through the same sink, so every line is written under its lock and lines from
+    // different threads never get mixed up
+    synchronized void println(String text) {
+        append(text);
+        endLine();
+    }
+
+    // prints the number the way Lox does: Double.toString without a trailing ".0"
+    synchronized void printNumber(double value) {
+        appendNumber(value);
+        endLine();
+    }
+
+    public synchronized void flush() {
+        if (length > 0) {
+            write(buffer, length);
+            length = 0;
+        }
+        lines = 0;
+        out.flush();
+    }
+
+    // hands a full buffer, or what there is of it at a flush, to wherever the output goes.
+    // chars can't be kept, it is reused as soon as this returns.
+    protected void write(char[] chars, int count) {
+        out.append(CharBuffer.wrap(chars, 0, count));
+    }
+
+    private void endLine() {
+        append(NEWLINE);
+        if (linesPerFlush > 0 && ++lines >= linesPerFlush) flush();
+    }
+
+    private void append(String text) {
+        append(text, text.length());
+    }
+
+    // appends text up to end
+    private void append(String text, int end) {
+        int start = 0;
+        while (start < end) {
+            if (length == buffer.length) drain();
+            int count = Math.min(end - start, buffer.length - length);
+            text.getChars(start, start + count, buffer, length);
+            length += count;
+            start += count;
+        }
+    }
+
+    // writes out the buffer without flushing the stream
+    private void drain() {
+        write(buffer, length);
+        length = 0;
+    }
+
+    // Double.toString makes a new String (and the ".0" a second one) for every number printed.
+    // Integers and numbers with up to three decimals, between 0.001 and 10 million, are written straight
+    // into the buffer instead. That is the range where Double.toString uses plain notation, and for these
+    // numbers the shortest decimal that reads back as the same double is what it prints. Checked against
+    // Double.toString for every multiple of 0.001 up to 20,000 (and every integer up to 20 million) plus
+    // tens of millions of random doubles. Everything else still goes through Double.toString.
+    private void appendNumber(double value) {
+        if (buffer.length - length < NUMBER_CHARS) drain();
+
+        if (value == 0) {
+            // Double.toString(-0.0) is "-0.0"
+            if (Double.doubleToRawLongBits(value) < 0) buffer[length++] = '-';
+            buffer[length++] = '0';
+            return;
+        }
+
+        double magnitude = Math.abs(value);
+        if (magnitude >= 1e-3 && magnitude < 1e7) {
+            for (int decimals = 0; decimals < SCALES.length; decimals++) {
+                double scaled = Math.rint(value * SCALES[decimals]);
+                // dividing two exact doubles rounds correctly, so if this gives back value, the decimal
+                // 'scaled' with this many decimals reads back as value too. fewer decimals didn't.
+                if (scaled / SCALES[decimals] == value) {
+                    appendDecimal((long)scaled, decimals);
+                    return;
+                }
+            }
+        }
+
+        String text = Double.toString(value);
+        append(text, text.endsWith(".0") ? text.length() - 2 : text.length());
+    }
+
+    // appends scaled / 10^decimals. scaled never ends in a zero when there are decimals, since fewer
+    // decimals would have matched first.
+    private void appendDecimal(long scaled, int decimals) {
+        boolean negative = scaled < 0;
+        long rest = Math.abs(scaled);
+
+        int start = digits.length;
+        for (int i = 0; i < decimals; i++) {
+            digits[--start] = (char)('0' + rest % 10);
+            rest /= 10;
+        }
+        if (decimals > 0) digits[--start] = '.';
+        // at least one digit before the point, e.g. 0.25
+        do {
+            digits[--start] = (char)('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (negative) digits[--start] = '-';
+
+        System.arraycopy(digits, start, buffer, length, digits.length - start);
+        length += digits.length - start;
+    }
+}
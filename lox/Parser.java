@@ -2,18 +2,29 @@ package lox;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Iterator;
 import static lox.TokenType.*;
-import java.util.Arrays;
 
 public class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // The Parser never looks more than one token ahead or one token back, so those are the only two
+    // tokens it holds on to. The rest are pulled from the stream as they are needed.
+    private final Iterator<Token> tokens;
+    private Token current;
+    private Token previous = null;
+    private final ErrorReporter reporter;
 
     Parser(List<Token> tokens) {
+        this(tokens.iterator(), new ErrorReporter(System.out));
+    }
+
+    // the stream must end with an EOF token
+    Parser(Iterator<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
+        this.current = tokens.next();
     }
 
     List<Stmt> parse() {
@@ -25,6 +36,16 @@ public class Parser {
         return statements;
     }
 
+    // For running a program as it is parsed: hasNext() tells whether there is another top level
+    // declaration and parseNext() parses it. Like parse(), a declaration with a syntax error comes back null.
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    Stmt parseNext() {
+        return declaration();
+    }
+
     // private helper function to help us parse statements out of the tokens
     private Stmt statement() {
         if (match(FOR))
@@ -43,6 +64,8 @@ public class Parser {
 
     // this is where desugaring of the for statement occurs, converting it into a while statment
     private Stmt forStatement() {
+        // the loop reports its errors (e.g. running out of fuel) at the 'for'
+        Token keyword = previous();
         // consume the opening parenth
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
         
@@ -72,25 +95,12 @@ public class Parser {
 
         Stmt body = statement();
 
-        // at this point, we have captured the initializer, condition, and increment statement/expressions
-
-        // If there is an increment, add it to the end of the body
-        if(increment != null) {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-        }
-        
         // If there is no condition, set the condition simply to True (infinite loop)
         if(condition == null) condition = new Expr.Literal(true);
-        // With this, create a new While Loop tree using the existing body and condition
-        body = new Stmt.While(condition, body);
-        
-        // if there is an initializer, simply declare it in a block with the now while loop tree so that 
-        // the initialized variable is scoped to the loop.
-        if(initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
 
-        return body;
+        // the loop keeps its parts instead of being rewritten into a while loop inside blocks, so the
+        // Resolver can give the initializer and the body a single scope for the whole loop
+        return new Stmt.For(keyword, initializer, condition, increment, body);
     }
 
     // private helper function to help use assemble the ifStatement tree node
@@ -131,12 +141,13 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' to after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     // an expression statement consumes the expression and wraps it in a statement
@@ -407,8 +418,10 @@ public class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd())
-            this.current++;
+        if (!isAtEnd()) {
+            this.previous = this.current;
+            this.current = this.tokens.next();
+        }
         return previous();
     }
 
@@ -417,15 +430,15 @@ public class Parser {
     }
 
     private Token peek() {
-        return this.tokens.get(this.current);
+        return this.current;
     }
 
     private Token previous() {
-        return this.tokens.get(this.current - 1);
+        return this.previous;
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -0,0 +1,187 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A script that has already been scanned, parsed, optimized and resolved, ready to run any number of
+// times in any number of sessions without going through the Scanner and Parser again.
+// Get one from LoxSession.prepare (or a ScriptCache) and run it with LoxSession.run.
+// Sharing the tree between sessions, even on different threads, is safe: the Resolver only writes to
+// it while preparing, and the caches the Interpreter keeps on the nodes check themselves before use
+// (global cells check their owner, cached callees are compared by identity, and specialized operators
+// deoptimize when their guess is wrong), so a race between sessions only costs a cache miss.
+// Those caches hold on to the session's globals though, so LoxSession.run calls forget when a run ends,
+// or a script sitting in a ScriptCache would keep every session that ever ran it alive.
+public class PreparedScript {
+    final List<Stmt> statements;
+    // how big the source was, which the ScriptCache uses as an estimate of the script's size
+    final int sourceLength;
+    // the bytecode, compiled the first time the script runs on a VM
+    private Chunk chunk = null;
+    // the chunk and every function chunk in it, for forget
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    // the nodes that cache something of the session running them, found once up front so forget
+    // doesn't have to walk the tree
+    private final List<Expr.Variable> variables = new ArrayList<>();
+    private final List<Expr.Assign> assignments = new ArrayList<>();
+    private final List<Expr.Call> calls = new ArrayList<>();
+
+    PreparedScript(List<Stmt> statements, int sourceLength) {
+        this.statements = statements;
+        this.sourceLength = sourceLength;
+        new CacheFinder().find(statements);
+    }
+
+    // one chunk is shared by every VM that runs the script. its code and constants never change after
+    // compiling; the only thing VMs write to it is the global cell cache (see VM.globalCell), which like the
+    // caches on the tree checks each cell's owner before using it, so a race only costs a lookup.
+    synchronized Chunk chunk(ErrorReporter reporter) {
+        if (chunk == null) {
+            chunk = new Compiler(reporter).compile(statements);
+            if (chunk != null) addChunks(chunk);
+        }
+        return chunk;
+    }
+
+    private void addChunks(Chunk chunk) {
+        chunks.add(chunk);
+        for (Object constant : chunk.constants) {
+            if (constant instanceof Chunk) addChunks((Chunk)constant);
+        }
+    }
+
+    // empties the caches on the tree and the chunk, so they no longer point into a session's globals.
+    // another session still running the script just fills them again, the same as after a race. so does
+    // a task the finished run spawned that is still going, whose globals are alive anyway until it ends.
+    void forget() {
+        for (Expr.Variable variable : variables) variable.cell = null;
+        for (Expr.Assign assignment : assignments) assignment.cell = null;
+        for (Expr.Call call : calls) call.cachedCallee = null;
+        synchronized (this) {
+            for (Chunk compiled : chunks) compiled.cells = null;
+        }
+    }
+
+    private class CacheFinder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        void find(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                if (statement != null) statement.accept(this);
+            }
+        }
+
+        private void find(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        private void find(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            find(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            find(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            find(stmt.initializer);
+            find(stmt.condition);
+            find(stmt.increment);
+            find(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            find(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            find(stmt.condition);
+            find(stmt.thenBranch);
+            find(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            find(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            find(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            find(stmt.condition);
+            find(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            assignments.add(expr);
+            find(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            find(expr.left);
+            find(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            calls.add(expr);
+            find(expr.callee);
+            for (Expr argument : expr.arguments) find(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            find(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            find(expr.left);
+            find(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            find(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            variables.add(expr);
+            return null;
+        }
+    }
+}
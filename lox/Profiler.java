@@ -0,0 +1,325 @@
+package lox;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+// A sampling profiler for the tree-walking interpreter. While it is attached the Interpreter keeps a
+// CallStack of the Lox functions it is in and the statement each one is running. A daemon thread looks at
+// that stack every interval and counts where the program was. Nothing is counted on the interpreter's
+// thread, all it pays for is a couple of array stores per call and one per statement.
+//
+// The results are a flat profile (time per function and per line) and folded stacks, one
+// "<script>;outer;inner count" line per distinct stack, which flamegraph.pl and speedscope read directly.
+public class Profiler {
+    // the interpreter's side, written only by the interpreter's thread and read by the sampler without
+    // locking. depth is volatile and a frame's slots are filled in before depth is raised to include it, so
+    // a sampler that reads depth first sees every frame below it complete. grown arrays are stored (also
+    // volatile) before depth, so it never sees a depth longer than the arrays it reads. the statement a
+    // frame is on changes far too often for a volatile write, it is stored with release semantics instead,
+    // which is a plain store on most hardware but still can't be held back or reordered by the JIT.
+    static final class CallStack {
+        private static final VarHandle STATEMENT = MethodHandles.arrayElementVarHandle(Stmt[].class);
+
+        // frame 0 is the top level script, which has no function
+        volatile Stmt.Function[] functions = new Stmt.Function[64];
+        // the statement each frame started most recently
+        volatile Stmt[] statements = new Stmt[64];
+        volatile int depth = 1;
+
+        void push(Stmt.Function function) {
+            int top = depth;
+            Stmt.Function[] functions = this.functions;
+            Stmt[] statements = this.statements;
+            if (top == functions.length) {
+                // copied in full before they are published, so the sampler never sees them half copied
+                functions = Arrays.copyOf(functions, top * 2);
+                statements = Arrays.copyOf(statements, top * 2);
+                this.functions = functions;
+                this.statements = statements;
+            }
+            functions[top] = function;
+            statements[top] = null;
+            depth = top + 1;
+        }
+
+        void pop() {
+            depth = depth - 1;
+        }
+
+        void statement(Stmt stmt) {
+            STATEMENT.setRelease(statements, depth - 1, stmt);
+        }
+
+        // the statement a frame is on, as the sampler sees it
+        static Stmt statementAt(Stmt[] statements, int frame) {
+            return (Stmt)STATEMENT.getAcquire(statements, frame);
+        }
+    }
+
+    // folded stacks deeper than this keep the outermost frame and the innermost ones
+    private static final int MAX_FRAMES = 256;
+
+    private final Interpreter interpreter;
+    private final CallStack stack = new CallStack();
+    private final long intervalNanos;
+    private final Thread sampler;
+    private volatile boolean running = true;
+
+    // only touched by the sampler thread until it has been joined
+    private long samples = 0;
+    private final Map<String, long[]> selfByFunction = new HashMap<>();
+    private final Map<String, long[]> totalByFunction = new HashMap<>();
+    private final Map<String, long[]> selfByLine = new HashMap<>();
+    private final Map<String, long[]> folded = new HashMap<>();
+    private final Map<Stmt, String> lines = new IdentityHashMap<>();
+
+    Profiler(Interpreter interpreter, long intervalNanos) {
+        this.interpreter = interpreter;
+        this.intervalNanos = intervalNanos;
+        interpreter.callStack = stack;
+
+        sampler = new Thread(this::sampleUntilStopped, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    // stops sampling and detaches from the interpreter. the reports can be written after this.
+    public void stop() {
+        running = false;
+        interpreter.callStack = null;
+        try {
+            sampler.join();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    public void writeFlat(PrintStream out) {
+        out.println("Flat profile: " + samples + " samples, one every " + intervalNanos / 1000 + "us");
+        out.println();
+        out.println("  self%    self  total%   total  function");
+        for (String function : sorted(selfByFunction, totalByFunction)) {
+            long self = count(selfByFunction, function);
+            long total = count(totalByFunction, function);
+            out.println(String.format("%6.1f%% %7d %6.1f%% %7d  %s",
+                percent(self), self, percent(total), total, function));
+        }
+
+        out.println();
+        out.println("  self%    self  line");
+        for (String line : sorted(selfByLine, selfByLine)) {
+            long self = count(selfByLine, line);
+            out.println(String.format("%6.1f%% %7d  %s", percent(self), self, line));
+        }
+    }
+
+    public void writeFolded(PrintWriter out) {
+        for (Map.Entry<String, long[]> stack : folded.entrySet()) {
+            out.println(stack.getKey() + " " + stack.getValue()[0]);
+        }
+        out.flush();
+    }
+
+    private void sampleUntilStopped() {
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+            if (running) sample();
+        }
+    }
+
+    private void sample() {
+        // depth first, see CallStack. the interpreter may grow the arrays at any time, so each is read once.
+        int depth = stack.depth;
+        Stmt.Function[] functions = stack.functions;
+        Stmt[] statements = stack.statements;
+        if (depth <= 0) return;
+        // not running anything: still scanning and parsing, or between runs
+        if (depth == 1 && CallStack.statementAt(statements, 0) == null) return;
+
+        samples++;
+        String leaf = name(functions[depth - 1], depth - 1);
+        increment(selfByFunction, leaf);
+        increment(selfByLine, leaf + ":" + line(CallStack.statementAt(statements, depth - 1)));
+
+        // a recursive function counts once towards total, however many times it is on the stack
+        Set<String> seen = new HashSet<>();
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            String name = name(functions[i], i);
+            if (seen.add(name)) increment(totalByFunction, name);
+
+            if (i > 0 && i < depth - MAX_FRAMES + 1) {
+                if (i == 1) path.append(";...");
+                continue;
+            }
+            if (i > 0) path.append(';');
+            path.append(name);
+        }
+        increment(folded, path.toString());
+    }
+
+    private static String name(Stmt.Function function, int frame) {
+        if (frame == 0) return "<script>";
+        // a frame the sampler caught half pushed
+        if (function == null) return "<unknown>";
+        return function.name.lexeme;
+    }
+
+    // "?" for a function that hasn't started its first statement yet, or for a statement without a single
+    // token in it (e.g. print "done";)
+    private String line(Stmt stmt) {
+        if (stmt == null) return "?";
+        String line = lines.get(stmt);
+        if (line == null) {
+            Integer found = stmt.accept(Lines.INSTANCE);
+            line = found == null ? "?" : found.toString();
+            lines.put(stmt, line);
+        }
+        return line;
+    }
+
+    private static void increment(Map<String, long[]> counts, String key) {
+        long[] count = counts.get(key);
+        if (count == null) counts.put(key, new long[] { 1 });
+        else count[0]++;
+    }
+
+    private static long count(Map<String, long[]> counts, String key) {
+        long[] count = counts.get(key);
+        return count == null ? 0 : count[0];
+    }
+
+    private double percent(long count) {
+        return samples == 0 ? 0 : 100.0 * count / samples;
+    }
+
+    // the keys of counts, most samples in by first
+    private static List<String> sorted(Map<String, long[]> keys, Map<String, long[]> by) {
+        List<String> sorted = new ArrayList<>(keys.keySet());
+        for (String key : by.keySet()) {
+            if (!keys.containsKey(key)) sorted.add(key);
+        }
+        sorted.sort((a, b) -> Long.compare(count(by, b), count(by, a)));
+        return sorted;
+    }
+
+    // the line a statement starts on, which is the line of the first token anywhere inside it, or null if it
+    // has none. statements don't keep a line of their own, so this is only worked out for sampled ones.
+    private static final class Lines implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private static final Lines INSTANCE = new Lines();
+
+        private Integer first(Expr... exprs) {
+            for (Expr expr : exprs) {
+                Integer line = expr == null ? null : expr.accept(this);
+                if (line != null) return line;
+            }
+            return null;
+        }
+
+        private Integer first(List<Stmt> stmts) {
+            for (Stmt stmt : stmts) {
+                Integer line = stmt.accept(this);
+                if (line != null) return line;
+            }
+            return null;
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            return first(stmt.statements);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return first(stmt.expression);
+        }
+
+        @Override
+        public Integer visitForStmt(Stmt.For stmt) {
+            return stmt.keyword.line;
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            return stmt.name.line;
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            return first(stmt.condition);
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return first(stmt.expression);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            return stmt.name.line;
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            return stmt.keyword.line;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return expr.name.line;
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            Integer line = first(expr.left);
+            return line != null ? line : expr.operator.line;
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            Integer line = first(expr.callee);
+            return line != null ? line : expr.paren.line;
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return first(expr.expression);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            Integer line = first(expr.left);
+            return line != null ? line : expr.operator.line;
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return expr.operator.line;
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return expr.name.line;
+        }
+    }
+}
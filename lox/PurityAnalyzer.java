@@ -0,0 +1,154 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Finds the functions that are pure, so the Interpreter can memoize them (see MemoizedFunction).
+// A function is pure if its body never prints, never reads or assigns a global except to call it, and
+// only calls global functions. Whether those callees are pure too can only be known when the call happens,
+// since globals can be redefined at any time, so MemoizedFunction checks that at runtime.
+// Loops are allowed: a call that never finishes never gets remembered.
+class PurityAnalyzer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // the function being analyzed, or null at the top level where nothing needs to be pure
+    private Stmt.Function function = null;
+
+    void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            analyze(statement);
+        }
+    }
+
+    private void analyze(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void analyze(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void impure() {
+        if (function != null) function.pure = false;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        analyze(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) analyze(stmt.initializer);
+        analyze(stmt.condition);
+        if (stmt.increment != null) analyze(stmt.increment);
+        analyze(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // a nested function gets its own verdict. declaring it doesn't make the enclosing one impure.
+        Stmt.Function enclosing = function;
+        function = stmt;
+        stmt.pure = true;
+        stmt.callees = new ArrayList<>();
+        analyze(stmt.body);
+        function = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        analyze(stmt.condition);
+        analyze(stmt.thenBranch);
+        if (stmt.elseBranch != null) analyze(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        impure();
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) analyze(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        analyze(stmt.condition);
+        analyze(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth < 0) impure();
+        analyze(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).depth < 0) {
+            if (function != null) function.callees.add(((Expr.Variable)expr.callee).name);
+        } else {
+            // a function held in a local could be anything
+            impure();
+            analyze(expr.callee);
+        }
+
+        for (Expr argument : expr.arguments) {
+            analyze(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        analyze(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        analyze(expr.left);
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        analyze(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        // a global can change between calls
+        if (expr.depth < 0) impure();
+        return null;
+    }
+}
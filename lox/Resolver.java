@@ -0,0 +1,270 @@
+package lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+// The Resolver is a static pass that runs between the Parser and the Interpreter.
+// It walks the tree once and works out, for every local variable, how many scopes up it lives (depth)
+// and which index it occupies in that scope (slot). The Interpreter then reads locals straight out of
+// an array instead of hashing the name at every level of the environment chain.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // each scope maps a variable name to its slot in the matching runtime Environment.
+    // the global scope is not tracked here; anything we can't find is assumed to be global.
+    private Stack<Map<String, Integer>> scopes = new Stack<>();
+    // the number of slots handed out so far in each scope, which becomes the size of its frame
+    private Stack<Integer> slotCounts = new Stack<>();
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginScope() {
+        scopes.push(new HashMap<String, Integer>());
+        slotCounts.push(0);
+    }
+
+    private int endScope() {
+        scopes.pop();
+        return slotCounts.pop();
+    }
+
+    // hands out a slot in the innermost scope. Lox lets you redeclare a variable in the same scope,
+    // in which case the new declaration simply reuses the old slot.
+    private int declare(Token name) {
+        Map<String, Integer> scope = scopes.peek();
+        Integer slot = scope.get(name.lexeme);
+        if (slot != null) return slot;
+
+        slot = slotCounts.pop();
+        slotCounts.push(slot + 1);
+        scope.put(name.lexeme, slot);
+        return slot;
+    }
+
+    // walks the scopes from the innermost outwards. if the variable is found, record how far out it was
+    // and which slot it is in. if not, leave the defaults in place so the Interpreter looks it up as a global.
+    private void resolveLocal(Expr expr, Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.lexeme);
+            if (slot != null) {
+                int depth = scopes.size() - 1 - i;
+                if (expr instanceof Expr.Variable) {
+                    ((Expr.Variable)expr).depth = depth;
+                    ((Expr.Variable)expr).slot = slot;
+                } else {
+                    ((Expr.Assign)expr).depth = depth;
+                    ((Expr.Assign)expr).slot = slot;
+                }
+                return;
+            }
+        }
+    }
+
+    // A block that declares nothing gets no scope, its statements are resolved (and run) in the enclosing
+    // one. slotCount stays 0, which tells both engines not to make an environment for it.
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!declares(stmt.statements)) {
+            resolve(stmt.statements);
+            return null;
+        }
+
+        beginScope();
+        resolve(stmt.statements);
+        stmt.slotCount = endScope();
+        return null;
+    }
+
+    // only a block's own statements can declare in its scope, the grammar allows no declaration anywhere else
+    private static boolean declares(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function) return true;
+        }
+        return false;
+    }
+
+    // A loop's variables all live in one scope that is made when the loop starts and reused by every
+    // iteration: the for loop's initializer and the declarations at the top of its body block. Running the
+    // body doesn't make a new environment each time round. That is safe because nothing declared in the
+    // body can outlive an iteration (functions don't capture their surroundings) and every declaration
+    // in it runs before anything that reads it, so a slot is never seen holding the last iteration's value.
+    // The condition and increment are resolved before the body, so they see the initializer's variable but
+    // none of the body's. Returns the size of the scope, 0 if the loop needs none.
+    private int resolveLoop(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+        // a body that redeclares the initializer's variable has to shadow it, so it keeps a scope of its own
+        Stmt.Block block = body instanceof Stmt.Block ? (Stmt.Block)body : null;
+        if (block != null && initializer instanceof Stmt.Var &&
+                redeclares(block.statements, ((Stmt.Var)initializer).name)) {
+            block = null;
+        }
+
+        boolean declaresInBody = block != null && declares(block.statements);
+        if (!(initializer instanceof Stmt.Var) && !declaresInBody) {
+            if (initializer != null) resolve(initializer);
+            resolve(condition);
+            if (increment != null) resolve(increment);
+            resolve(body);
+            return 0;
+        }
+
+        beginScope();
+        if (initializer != null) resolve(initializer);
+        resolve(condition);
+        if (increment != null) resolve(increment);
+        if (declaresInBody) {
+            // slotCount 0 makes the body run straight in the loop's scope
+            block.slotCount = 0;
+            resolve(block.statements);
+        } else {
+            resolve(body);
+        }
+        return endScope();
+    }
+
+    private static boolean redeclares(List<Stmt> statements, Token name) {
+        for (Stmt statement : statements) {
+            Token declared = null;
+            if (statement instanceof Stmt.Var) declared = ((Stmt.Var)statement).name;
+            if (statement instanceof Stmt.Function) declared = ((Stmt.Function)statement).name;
+            if (declared != null && declared.lexeme.equals(name.lexeme)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        stmt.slotCount = resolveLoop(stmt.initializer, stmt.condition, stmt.increment, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (!scopes.isEmpty()) stmt.slot = declare(stmt.name);
+
+        // functions don't close over their surrounding scopes yet: at runtime a call's environment
+        // encloses the globals directly. so the body is resolved against a fresh scope stack and
+        // anything that isn't a parameter or a local of the body is treated as a global.
+        Stack<Map<String, Integer>> enclosingScopes = scopes;
+        Stack<Integer> enclosingSlotCounts = slotCounts;
+        scopes = new Stack<>();
+        slotCounts = new Stack<>();
+
+        // parameters and the top level of the body share one scope, the same way LoxFunction.call
+        // binds the parameters in the environment it runs the body in.
+        beginScope();
+        for (Token param : stmt.params) {
+            declare(param);
+        }
+        resolve(stmt.body);
+        stmt.slotCount = endScope();
+
+        scopes = enclosingScopes;
+        slotCounts = enclosingSlotCounts;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // the initializer is resolved before the name is declared, so `var a = a;` in a block
+        // reads the outer 'a' exactly like the Interpreter evaluates it.
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+
+        if (!scopes.isEmpty()) stmt.slot = declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.slotCount = resolveLoop(null, stmt.condition, null, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        resolveLocal(expr, expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        resolveLocal(expr, expr.name);
+        return null;
+    }
+}
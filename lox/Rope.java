@@ -0,0 +1,111 @@
+package lox;
+
+import java.util.ArrayDeque;
+
+// A Lox string made by concatenating two others, without copying either of them. Building a string
+// piece by piece (s = s + piece; in a loop) copied everything built so far on every step, which is
+// quadratic. With ropes every step is constant time, and the characters are only copied once, when the
+// string is actually needed: when it is printed, compared with ==, or passed to a native. The flat String
+// is then kept, so doing that again costs nothing.
+//
+// Lox code can't tell a Rope from a String. Anything that looks at a string's characters calls flatten.
+final class Rope {
+    // a shorter concatenation just makes a String, a rope of it wouldn't save anything
+    private static final int MIN_LENGTH = 64;
+
+    private static final class Concat {
+        // each is a String or a Rope
+        final Object left;
+        final Object right;
+
+        Concat(Object left, Object right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private final int length;
+    // a Concat until the rope is flattened, and the String from then on. ropes can be shared between threads
+    // (see Concurrency), and since this is read once and only ever replaced with the same characters, a
+    // thread never sees a rope half flattened.
+    private volatile Object content;
+
+    private Rope(int length, Concat content) {
+        this.length = length;
+        this.content = content;
+    }
+
+    // true for anything Lox considers a string
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // left + right. both have to be strings (see isString).
+    static Object concat(Object left, Object right) {
+        long length = (long)length(left) + length(right);
+        if (length > Integer.MAX_VALUE - 8) {
+            // what String concatenation does when the result can't be a String
+            throw new OutOfMemoryError("String is too long.");
+        }
+
+        if (length(left) == 0) return right;
+        if (length(right) == 0) return left;
+        if (length < MIN_LENGTH) return left.toString() + right.toString();
+        return new Rope((int)length, new Concat(left, right));
+    }
+
+    // the value itself, or the String a Rope stands for
+    static Object flatten(Object value) {
+        if (value instanceof Rope) return value.toString();
+        return value;
+    }
+
+    private static int length(Object string) {
+        if (string instanceof Rope) return ((Rope)string).length;
+        return ((String)string).length();
+    }
+
+    @Override
+    public String toString() {
+        Object current = content;
+        if (current instanceof String) return (String)current;
+
+        // filled from the end, so a rope built by appending (whose tree leans left) only ever has a couple
+        // of pieces waiting. a deep tree is walked without recursing.
+        char[] chars = new char[length];
+        int end = length;
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(current);
+        while (!pending.isEmpty()) {
+            Object piece = pending.pop();
+            if (piece instanceof Rope) piece = ((Rope)piece).content;
+
+            if (piece instanceof String) {
+                String string = (String)piece;
+                end -= string.length();
+                string.getChars(0, string.length(), chars, end);
+            } else {
+                Concat concat = (Concat)piece;
+                pending.push(concat.left);
+                pending.push(concat.right);
+            }
+        }
+
+        String flat = new String(chars);
+        content = flat;
+        return flat;
+    }
+
+    // equal to a Rope with the same characters, but never to a String: String.equals is never true for a
+    // Rope, and equals has to agree both ways round. Lox's == goes through Interpreter.isEqual, which
+    // flattens both sides first, so to Lox code they are still the same string.
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Rope && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -1,6 +1,8 @@
 package lox;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -29,9 +31,39 @@ public class Scanner {
         keywords.put("while", WHILE);
     }
 
+    // tokens like '(' or '>=' always have the same text, so they all share one String per type
+    // instead of each cutting a fresh copy out of the source
+    private static final Map<TokenType, String> fixedLexemes = new EnumMap<>(TokenType.class);
+
+    static {
+        fixedLexemes.put(LEFT_PAREN, "(");
+        fixedLexemes.put(RIGHT_PAREN, ")");
+        fixedLexemes.put(LEFT_BRACE, "{");
+        fixedLexemes.put(RIGHT_BRACE, "}");
+        fixedLexemes.put(COMMA, ",");
+        fixedLexemes.put(DOT, ".");
+        fixedLexemes.put(MINUS, "-");
+        fixedLexemes.put(PLUS, "+");
+        fixedLexemes.put(SEMICOLON, ";");
+        fixedLexemes.put(SLASH, "/");
+        fixedLexemes.put(STAR, "*");
+        fixedLexemes.put(BANG, "!");
+        fixedLexemes.put(BANG_EQUAL, "!=");
+        fixedLexemes.put(EQUAL, "=");
+        fixedLexemes.put(EQUAL_EQUAL, "==");
+        fixedLexemes.put(GREATER, ">");
+        fixedLexemes.put(GREATER_EQUAL, ">=");
+        fixedLexemes.put(LESS, "<");
+        fixedLexemes.put(LESS_EQUAL, "<=");
+    }
+
     // source is the source code and tokens will hold the emitted tokens after lexically analyzing the source code
-    private final String source;
+    private final Source source;
     private final List<Token> tokens = new ArrayList<>();
+    // the token produced by the last call to scanToken(), if it produced one (whitespace and comments don't)
+    private Token emitted = null;
+    // identifiers and keywords, so each distinct name is only allocated once
+    private final SymbolTable symbols = new SymbolTable(keywords);
 
     // start and current are offsets that index into the string. start points to the first character in the lexeme and
     // current points to the current character being considered
@@ -41,19 +73,63 @@ public class Scanner {
     // line is the current line number being considered
     private int line = 1;
 
+    // where lexical errors go, so they count against the right session
+    private final ErrorReporter reporter;
+
     Scanner(String source) {
+        this(Source.of(source), new ErrorReporter(System.out));
+    }
+
+    Scanner(Source source, ErrorReporter reporter) {
         this.source = source;
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
+        for (;;) {
+            Token token = nextToken();
+            tokens.add(token);
+            if (token.type == EOF) return tokens;
+        }
+    }
+
+    // Scans just far enough to produce the next token, so the Parser can pull tokens as it needs them
+    // instead of waiting for the whole source to be scanned. Returns EOF (forever) once the source runs out.
+    Token nextToken() {
         while (!isAtEnd()) {
+            // nothing before the start of this token will be looked at again
+            source.release(current);
             start = current;
             scanToken();
+
+            if (emitted != null) {
+                Token token = emitted;
+                emitted = null;
+                return token;
+            }
         }
-        
+
         // This adds the End of File token to the end for clarity
-        tokens.add(new Token(EOF, "", null, this.line));
-        return tokens;
+        return new Token(EOF, "", null, this.line);
+    }
+
+    // the tokens as a pull-based stream that ends after the EOF token
+    Iterator<Token> tokenStream() {
+        return new Iterator<Token>() {
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                return !done;
+            }
+
+            @Override
+            public Token next() {
+                Token token = nextToken();
+                if (token.type == EOF) done = true;
+                return token;
+            }
+        };
     }
 
     private void scanToken() {
@@ -96,7 +172,7 @@ public class Scanner {
                     identifier();
                 }
                     else {
-                    Lox.error(line, "Unexpected character.");
+                    reporter.error(line, "Unexpected character.");
                 }
             break;
         }
@@ -105,11 +181,9 @@ public class Scanner {
     private void identifier() {
         while(isAlphaNumeric(peak()) && !isAtEnd()) advance();
 
-        String text = source.substring(this.start, this.current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-
-        addToken(type);
+        // looks the name up without cutting it out of the source first
+        int symbol = symbols.intern(source, this.start, this.current);
+        addToken(symbols.type(symbol), null, symbols.name(symbol));
     }
 
     private void string() {
@@ -121,7 +195,7 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            reporter.error(line, "Unterminated string.");
             return;
         }
         
@@ -168,7 +242,7 @@ public class Scanner {
     }
 
     private char peakNext() {
-        if(this.current + 1 >= this.source.length()) return '\0';
+        if(this.source.isAtEnd(this.current + 1)) return '\0';
         return this.source.charAt(current + 1);
     }
 
@@ -185,7 +259,7 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return source.isAtEnd(current);
     }
 
     /**
@@ -199,7 +273,7 @@ public class Scanner {
     }
 
     private void addToken(TokenType type) {
-        this.addToken(type, null);
+        this.addToken(type, null, fixedLexemes.get(type));
     }
 
     /**
@@ -209,7 +283,10 @@ public class Scanner {
      * @param literal the literal value associated
      */
     private void addToken(TokenType type, Object literal) {
-        String text = this.source.substring(start, current);
-        tokens.add(new Token(type, text, literal, this.line));
+        this.addToken(type, literal, this.source.substring(start, current));
+    }
+
+    private void addToken(TokenType type, Object literal, String text) {
+        emitted = new Token(type, text, literal, this.line);
     }
 }
@@ -0,0 +1,96 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps prepared scripts around so running the same source again skips scanning and parsing.
+// Scripts are keyed by a SHA-256 hash of their source, so the cache doesn't hold on to the source text.
+// When there are more than maxEntries scripts, or their sources add up to more than maxSourceChars,
+// the least recently used ones are evicted. Safe to share between threads.
+public class ScriptCache {
+    private final int maxEntries;
+    private final long maxSourceChars;
+
+    // access order, so iteration starts at the least recently used entry
+    private final LinkedHashMap<ByteBuffer, PreparedScript> scripts = new LinkedHashMap<>(16, 0.75f, true);
+    private long sourceChars = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ScriptCache(int maxEntries, long maxSourceChars) {
+        this.maxEntries = maxEntries;
+        this.maxSourceChars = maxSourceChars;
+    }
+
+    // returns the cached script for this source, or prepares it in the given session and caches it.
+    // returns null if the source has a syntax error; the error is reported to the session and nothing is cached.
+    public PreparedScript prepare(String source, LoxSession session) {
+        ByteBuffer key = hash(source);
+
+        synchronized (this) {
+            PreparedScript script = scripts.get(key);
+            if (script != null) {
+                hits.increment();
+                return script;
+            }
+        }
+
+        // prepare outside the lock so a slow parse doesn't hold up every other lookup.
+        // two threads missing on the same source at once will both prepare it, and the second one wins.
+        misses.increment();
+        PreparedScript script = session.prepare(source);
+        if (script == null) return null;
+
+        synchronized (this) {
+            PreparedScript previous = scripts.put(key, script);
+            if (previous != null) sourceChars -= previous.sourceLength;
+            sourceChars += script.sourceLength;
+            evict();
+        }
+        return script;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return scripts.size();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<ByteBuffer, PreparedScript>> oldest = scripts.entrySet().iterator();
+        // always keep the script that was just added, even if it is bigger than the limit by itself
+        while (scripts.size() > 1 && (scripts.size() > maxEntries || sourceChars > maxSourceChars)) {
+            sourceChars -= oldest.next().getValue().sourceLength;
+            oldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static ByteBuffer hash(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException error) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(error);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A .loxc file: a compact binary copy of a script's syntax tree (after the Optimizer has run), so running
+// a big script again skips the Scanner and Parser altogether. Written by 'jlox compile script.lox'.
+//
+// The file is laid out as:
+//   header    "LOXC", the format version, and the size and modification time of the script it came from
+//   strings   every lexeme and string literal, each stored once
+//   literals  every literal value: nil, booleans, numbers, and strings as an index into the strings
+//   tokens    every distinct (type, lexeme, literal) the tree uses. a token's line isn't part of it.
+//   lines     the line of every token in the tree, in the order they appear, each as the change from the last
+//   tree      the statements. each node is a tag followed by its fields, see AstWriter and AstReader.
+// Apart from the magic number every number is a varint, so most counts and indexes take a single byte.
+final class Snapshot {
+    static final String EXTENSION = ".loxc";
+
+    private static final byte[] MAGIC = { 'L', 'O', 'X', 'C' };
+    // bump whenever the layout, the node types in GenerateAst or the order of TokenType changes
+    private static final int VERSION = 3;
+
+    private Snapshot() {}
+
+    // script.lox -> script.loxc, anything else gets .loxc added
+    static Path pathFor(Path script) {
+        String name = script.getFileName().toString();
+        if (name.endsWith(".lox")) name = name.substring(0, name.length() - 4);
+        return script.resolveSibling(name + EXTENSION);
+    }
+
+    static void write(List<Stmt> statements, Path script, Path snapshot) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(script, BasicFileAttributes.class);
+
+        AstWriter writer = new AstWriter();
+        writer.writeStmts(statements);
+
+        // write next to it and then move it into place, so nobody ever loads a half written snapshot
+        Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            writer.finish(out, attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // the statements in the snapshot, or null if it doesn't exist or was made from a different version of
+    // the script. a snapshot that can't be read at all is treated as missing.
+    static List<Stmt> readIfFresh(Path script, Path snapshot) {
+        try {
+            if (!Files.exists(snapshot)) return null;
+            BasicFileAttributes attributes = Files.readAttributes(script, BasicFileAttributes.class);
+
+            AstReader reader = new AstReader(Files.readAllBytes(snapshot));
+            if (reader.sourceSize != attributes.size() ||
+                    reader.sourceModified != attributes.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            return reader.readStmts();
+        } catch (IOException | RuntimeException error) {
+            return null;
+        }
+    }
+
+    // for running a .loxc directly, where there is no script to compare it against
+    static List<Stmt> read(Path snapshot) throws IOException {
+        try {
+            return new AstReader(Files.readAllBytes(snapshot)).readStmts();
+        } catch (RuntimeException error) {
+            // a tag or index that is out of range, or the file ending early
+            throw new IOException("Corrupt snapshot " + snapshot + ".", error);
+        }
+    }
+
+    private static final class Bytes extends ByteArrayOutputStream {
+        void varint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int)((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int)value);
+        }
+
+        void string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            write(utf8, 0, utf8.length);
+        }
+    }
+
+    // literal pool entries
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    // the pools and primitives AstWriter builds on
+    abstract static class Output {
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Bytes stringPool = new Bytes();
+        // HashMap allows a null key, which is nil
+        private final Map<Object, Integer> literals = new HashMap<>();
+        private final Bytes literalPool = new Bytes();
+        private final Map<List<Object>, Integer> tokens = new HashMap<>();
+        private final Bytes tokenPool = new Bytes();
+
+        private final Bytes lines = new Bytes();
+        private int line = 0;
+        private final Bytes tree = new Bytes();
+
+        final void writeTag(int tag) {
+            tree.varint(tag);
+        }
+
+        final void writeCount(int count) {
+            tree.varint(count);
+        }
+
+        final void writeToken(Token token) {
+            List<Object> shape = Arrays.asList(token.type, token.lexeme, token.literal);
+            Integer index = tokens.get(shape);
+            if (index == null) {
+                index = tokens.size();
+                tokens.put(shape, index);
+                tokenPool.varint(token.type.ordinal());
+                tokenPool.varint(string(token.lexeme));
+                tokenPool.varint(literal(token.literal));
+            }
+            tree.varint(index);
+
+            // zigzag, so going back a line is small too
+            int delta = token.line - line;
+            lines.varint((delta << 1) ^ (delta >> 31));
+            line = token.line;
+        }
+
+        final void writeTokens(List<Token> tokens) {
+            writeCount(tokens.size());
+            for (Token token : tokens) {
+                writeToken(token);
+            }
+        }
+
+        final void writeLiteral(Object value) {
+            tree.varint(literal(value));
+        }
+
+        private int string(String value) {
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.put(value, index);
+                stringPool.string(value);
+            }
+            return index;
+        }
+
+        private int literal(Object value) {
+            Integer index = literals.get(value);
+            if (index != null) return index;
+
+            if (value == null) {
+                literalPool.varint(NIL);
+            } else if (value instanceof Boolean) {
+                literalPool.varint((boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                literalPool.varint(NUMBER);
+                // the low bits of the mantissa are usually zero for the numbers people write, so reversing
+                // the bytes lets 1 or 0.5 fit in a couple of varint bytes instead of ten
+                literalPool.varint(Long.reverseBytes(Double.doubleToRawLongBits((double)value)));
+            } else if (value instanceof String) {
+                literalPool.varint(STRING);
+                literalPool.varint(string((String)value));
+            } else {
+                throw new IllegalArgumentException("Can't write a literal of " + value.getClass() + ".");
+            }
+
+            index = literals.size();
+            literals.put(value, index);
+            return index;
+        }
+
+        final void finish(OutputStream out, long sourceSize, long sourceModified) throws IOException {
+            Bytes header = new Bytes();
+            header.write(MAGIC, 0, MAGIC.length);
+            header.varint(VERSION);
+            header.varint(sourceSize);
+            header.varint(sourceModified);
+            header.writeTo(out);
+
+            section(out, strings.size(), stringPool);
+            section(out, literals.size(), literalPool);
+            section(out, tokens.size(), tokenPool);
+            // the lines are read alongside the tree, so the reader needs to know where they end
+            section(out, lines.size(), lines);
+            tree.writeTo(out);
+        }
+
+        private static void section(OutputStream out, int count, Bytes body) throws IOException {
+            Bytes length = new Bytes();
+            length.varint(count);
+            length.writeTo(out);
+            body.writeTo(out);
+        }
+    }
+
+    // the pools and primitives AstReader builds on. the constructor reads everything up to the tree.
+    abstract static class Input {
+        private final byte[] bytes;
+        private int position;
+
+        final long sourceSize;
+        final long sourceModified;
+
+        private final String[] strings;
+        private final Object[] literals;
+        private final TokenType[] tokenTypes;
+        private final String[] tokenLexemes;
+        private final Object[] tokenLiterals;
+
+        // the lines are a separate cursor into the same bytes
+        private int linePosition;
+        private int line = 0;
+
+        Input(byte[] bytes) throws IOException {
+            this.bytes = bytes;
+            if (bytes.length < MAGIC.length || !Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new IOException("Not a Lox snapshot.");
+            }
+            position = MAGIC.length;
+            if (varint() != VERSION) throw new IOException("Snapshot was written by a different version.");
+            sourceSize = varint();
+            sourceModified = varint();
+
+            strings = new String[(int)varint()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = (int)varint();
+                strings[i] = new String(bytes, position, length, StandardCharsets.UTF_8);
+                position += length;
+            }
+
+            literals = new Object[(int)varint()];
+            for (int i = 0; i < literals.length; i++) {
+                switch ((int)varint()) {
+                    case NIL: literals[i] = null; break;
+                    case FALSE: literals[i] = false; break;
+                    case TRUE: literals[i] = true; break;
+                    case NUMBER: literals[i] = Double.longBitsToDouble(Long.reverseBytes(varint())); break;
+                    case STRING: literals[i] = strings[(int)varint()]; break;
+                    default: throw new IOException("Unknown literal in snapshot.");
+                }
+            }
+
+            TokenType[] types = TokenType.values();
+            int tokenCount = (int)varint();
+            tokenTypes = new TokenType[tokenCount];
+            tokenLexemes = new String[tokenCount];
+            tokenLiterals = new Object[tokenCount];
+            for (int i = 0; i < tokenCount; i++) {
+                tokenTypes[i] = types[(int)varint()];
+                tokenLexemes[i] = strings[(int)varint()];
+                tokenLiterals[i] = literals[(int)varint()];
+            }
+
+            int lineBytes = (int)varint();
+            linePosition = position;
+            position += lineBytes;
+        }
+
+        final int readTag() {
+            return (int)varint();
+        }
+
+        final int readCount() {
+            return (int)varint();
+        }
+
+        final Token readToken() {
+            int index = (int)varint();
+
+            int saved = position;
+            position = linePosition;
+            int zigzag = (int)varint();
+            linePosition = position;
+            position = saved;
+            line += (zigzag >>> 1) ^ -(zigzag & 1);
+
+            return new Token(tokenTypes[index], tokenLexemes[index], tokenLiterals[index], line);
+        }
+
+        final List<Token> readTokens() {
+            int count = readCount();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(readToken());
+            }
+            return tokens;
+        }
+
+        final Object readLiteral() {
+            return literals[(int)varint()];
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long)(b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+}
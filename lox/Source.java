@@ -0,0 +1,129 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+// The text the Scanner reads from. Either a String that is already in memory, or a file that is
+// memory-mapped and decoded a piece at a time as the Scanner gets to it.
+abstract class Source {
+    abstract char charAt(int index);
+
+    // true if index is past the last character
+    abstract boolean isAtEnd(int index);
+
+    abstract String substring(int start, int end);
+
+    // the Scanner promises it will never ask for anything before index again, so it can be thrown away
+    void release(int index) {
+    }
+
+    static Source of(String text) {
+        return new StringSource(text);
+    }
+
+    // maps the whole file, so only the characters between the Scanner's oldest unfinished token and the
+    // furthest it has looked ahead are ever decoded into the heap at once
+    static Source map(FileChannel channel, Charset charset) throws IOException {
+        ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return new MappedSource(bytes, charset);
+    }
+
+    private static class StringSource extends Source {
+        private final String text;
+
+        StringSource(String text) {
+            this.text = text;
+        }
+
+        @Override
+        char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        boolean isAtEnd(int index) {
+            return index >= text.length();
+        }
+
+        @Override
+        String substring(int start, int end) {
+            return text.substring(start, end);
+        }
+    }
+
+    private static class MappedSource extends Source {
+        // how many characters are decoded from the file at a time
+        private static final int CHUNK = 8192;
+
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder;
+        private boolean decodedAll = false;
+
+        // the decoded window. window[0] is the character at index 'offset' in the file.
+        private char[] window = new char[CHUNK * 2];
+        private int offset = 0;
+        private int length = 0;
+
+        MappedSource(ByteBuffer bytes, Charset charset) {
+            this.bytes = bytes;
+            // new String(bytes, charset) replaces malformed input instead of failing, so do the same
+            this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        char charAt(int index) {
+            fill(index);
+            return window[index - offset];
+        }
+
+        @Override
+        boolean isAtEnd(int index) {
+            fill(index);
+            return index >= offset + length;
+        }
+
+        @Override
+        String substring(int start, int end) {
+            fill(end - 1);
+            return new String(window, start - offset, end - start);
+        }
+
+        @Override
+        void release(int index) {
+            int unused = index - offset;
+            // only shift the window once enough of it is dead, so the copying stays cheap
+            if (unused < window.length / 2) return;
+
+            System.arraycopy(window, unused, window, 0, length - unused);
+            length -= unused;
+            offset = index;
+        }
+
+        // decodes until index is in the window or the file runs out
+        private void fill(int index) {
+            while (index >= offset + length && !decodedAll) {
+                if (length + CHUNK > window.length) {
+                    // a single token (e.g. a long string literal) is bigger than the window
+                    window = Arrays.copyOf(window, window.length * 2);
+                }
+
+                CharBuffer out = CharBuffer.wrap(window, length, CHUNK);
+                CoderResult result = decoder.decode(bytes, out, true);
+                if (result.isUnderflow() && !bytes.hasRemaining()) {
+                    decoder.flush(out);
+                    decodedAll = true;
+                }
+                length = out.position();
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package lox;
+
+import static lox.TokenType.*;
+
+// Self-specializing nodes for the operators. Every Binary, Unary and Logical expression owns one.
+// It starts out uninitialized, and the first time it runs it looks at the operand types it was given
+// and replaces itself with a node that only handles that case (e.g. adding two doubles).
+// That node skips the operator switch and only checks that its guess still holds. If the guess is
+// ever wrong the site falls back to the generic node, which does exactly what the Interpreter used to do.
+// When the Interpreter has both operands as unboxed numbers it calls executeNumbers instead, and the
+// double nodes hand their result back unboxed through Interpreter.unboxed (see Interpreter.UNBOXED).
+final class Specialization {
+    private Specialization() {}
+
+    abstract static class Binary {
+        final Expr.Binary site;
+
+        Binary(Expr.Binary site) {
+            this.site = site;
+        }
+
+        abstract Object execute(Object left, Object right);
+
+        // both operands are numbers. the default boxes them and goes through execute.
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return execute(left, right);
+        }
+
+        // the operands didn't match what this node specialized on, so go generic for good
+        final Object deoptimize(Object left, Object right) {
+            Binary generic = new GenericBinary(site);
+            site.node = generic;
+            return generic.execute(left, right);
+        }
+    }
+
+    static final class UninitializedBinary extends Binary {
+        UninitializedBinary(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            Binary node = specialize(left, right);
+            site.node = node;
+            return node.execute(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            Binary node = specialize(left, right);
+            site.node = node;
+            return node.executeNumbers(interpreter, left, right);
+        }
+
+        private Binary specialize(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                switch (site.operator.type) {
+                    case PLUS: return new DoubleAdd(site);
+                    case MINUS: return new DoubleSubtract(site);
+                    case STAR: return new DoubleMultiply(site);
+                    case SLASH: return new DoubleDivide(site);
+                    case GREATER: return new DoubleGreater(site);
+                    case GREATER_EQUAL: return new DoubleGreaterEqual(site);
+                    case LESS: return new DoubleLess(site);
+                    case LESS_EQUAL: return new DoubleLessEqual(site);
+                    case EQUAL_EQUAL: return new DoubleEqual(site);
+                    case BANG_EQUAL: return new DoubleNotEqual(site);
+                }
+            }
+
+            if (Rope.isString(left) && Rope.isString(right) && site.operator.type == PLUS) {
+                return new StringConcat(site);
+            }
+
+            return new GenericBinary(site);
+        }
+    }
+
+    static final class GenericBinary extends Binary {
+        GenericBinary(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            return Interpreter.binary(site.operator, left, right);
+        }
+    }
+
+    static final class DoubleAdd extends Binary {
+        DoubleAdd(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return interpreter.unboxed(left + right);
+        }
+    }
+
+    static final class DoubleSubtract extends Binary {
+        DoubleSubtract(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left - (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return interpreter.unboxed(left - right);
+        }
+    }
+
+    static final class DoubleMultiply extends Binary {
+        DoubleMultiply(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left * (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return interpreter.unboxed(left * right);
+        }
+    }
+
+    static final class DoubleDivide extends Binary {
+        DoubleDivide(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left / (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return interpreter.unboxed(left / right);
+        }
+    }
+
+    static final class DoubleGreater extends Binary {
+        DoubleGreater(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left > (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return left > right;
+        }
+    }
+
+    static final class DoubleGreaterEqual extends Binary {
+        DoubleGreaterEqual(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left >= (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return left >= right;
+        }
+    }
+
+    static final class DoubleLess extends Binary {
+        DoubleLess(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left < (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return left < right;
+        }
+    }
+
+    static final class DoubleLessEqual extends Binary {
+        DoubleLessEqual(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left <= (double)right;
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return left <= right;
+        }
+    }
+
+    // Interpreter.isEqual compares numbers with Double.equals, which compares the bits
+    // (so NaN equals itself and 0 doesn't equal -0). doubleToLongBits keeps that exactly.
+    static final class DoubleEqual extends Binary {
+        DoubleEqual(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return left.equals(right);
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+        }
+    }
+
+    static final class DoubleNotEqual extends Binary {
+        DoubleNotEqual(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return !left.equals(right);
+            return deoptimize(left, right);
+        }
+
+        @Override
+        Object executeNumbers(Interpreter interpreter, double left, double right) {
+            return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+        }
+    }
+
+    static final class StringConcat extends Binary {
+        StringConcat(Expr.Binary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object left, Object right) {
+            if (Rope.isString(left) && Rope.isString(right)) return Rope.concat(left, right);
+            return deoptimize(left, right);
+        }
+    }
+
+    abstract static class Unary {
+        final Expr.Unary site;
+
+        Unary(Expr.Unary site) {
+            this.site = site;
+        }
+
+        abstract Object execute(Object right);
+
+        // the operand is a number. the default boxes it and goes through execute.
+        Object executeNumber(Interpreter interpreter, double right) {
+            return execute(right);
+        }
+
+        final Object deoptimize(Object right) {
+            Unary generic = new GenericUnary(site);
+            site.node = generic;
+            return generic.execute(right);
+        }
+    }
+
+    static final class UninitializedUnary extends Unary {
+        UninitializedUnary(Expr.Unary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object right) {
+            Unary node;
+            if (site.operator.type == MINUS && right instanceof Double) {
+                node = new DoubleNegate(site);
+            } else if (site.operator.type == BANG && right instanceof Boolean) {
+                node = new BooleanNot(site);
+            } else {
+                node = new GenericUnary(site);
+            }
+
+            site.node = node;
+            return node.execute(right);
+        }
+
+        @Override
+        Object executeNumber(Interpreter interpreter, double right) {
+            Unary node = site.operator.type == MINUS ? new DoubleNegate(site) : new GenericUnary(site);
+            site.node = node;
+            return node.executeNumber(interpreter, right);
+        }
+    }
+
+    static final class GenericUnary extends Unary {
+        GenericUnary(Expr.Unary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object right) {
+            return Interpreter.unary(site.operator, right);
+        }
+    }
+
+    static final class DoubleNegate extends Unary {
+        DoubleNegate(Expr.Unary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object right) {
+            if (right instanceof Double) return -(double)right;
+            return deoptimize(right);
+        }
+
+        @Override
+        Object executeNumber(Interpreter interpreter, double right) {
+            return interpreter.unboxed(-right);
+        }
+    }
+
+    static final class BooleanNot extends Unary {
+        BooleanNot(Expr.Unary site) {
+            super(site);
+        }
+
+        @Override
+        Object execute(Object right) {
+            if (right instanceof Boolean) return !(boolean)right;
+            return deoptimize(right);
+        }
+    }
+
+    // logical nodes only decide whether the left operand short circuits; evaluating the
+    // right operand stays in the Interpreter since it may not happen at all.
+    abstract static class Logical {
+        final Expr.Logical site;
+
+        Logical(Expr.Logical site) {
+            this.site = site;
+        }
+
+        // true if the left operand is the result and the right operand must not be evaluated
+        abstract boolean shortCircuits(Object left);
+
+        final boolean deoptimize(Object left) {
+            Logical generic = new GenericLogical(site);
+            site.node = generic;
+            return generic.shortCircuits(left);
+        }
+    }
+
+    static final class UninitializedLogical extends Logical {
+        UninitializedLogical(Expr.Logical site) {
+            super(site);
+        }
+
+        @Override
+        boolean shortCircuits(Object left) {
+            Logical node;
+            if (left instanceof Boolean) {
+                node = site.operator.type == OR ? new BooleanOr(site) : new BooleanAnd(site);
+            } else {
+                node = new GenericLogical(site);
+            }
+
+            site.node = node;
+            return node.shortCircuits(left);
+        }
+    }
+
+    static final class GenericLogical extends Logical {
+        GenericLogical(Expr.Logical site) {
+            super(site);
+        }
+
+        @Override
+        boolean shortCircuits(Object left) {
+            if (site.operator.type == OR) return Interpreter.isTruthy(left);
+            return !Interpreter.isTruthy(left);
+        }
+    }
+
+    static final class BooleanOr extends Logical {
+        BooleanOr(Expr.Logical site) {
+            super(site);
+        }
+
+        @Override
+        boolean shortCircuits(Object left) {
+            if (left instanceof Boolean) return (boolean)left;
+            return deoptimize(left);
+        }
+    }
+
+    static final class BooleanAnd extends Logical {
+        BooleanAnd(Expr.Logical site) {
+            super(site);
+        }
+
+        @Override
+        boolean shortCircuits(Object left) {
+            if (left instanceof Boolean) return !(boolean)left;
+            return deoptimize(left);
+        }
+    }
+}
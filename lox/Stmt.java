@@ -5,6 +5,7 @@ abstract class Stmt {
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
@@ -23,6 +24,9 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    // not part of the syntax, filled in after parsing
+    int slotCount = 0;
   }
 
   static class Expression extends Stmt {
@@ -38,6 +42,30 @@ abstract class Stmt {
     final Expr expression;
   }
 
+  static class For extends Stmt {
+    For(Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body){
+      this.keyword = keyword;
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Token keyword;
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+
+    // not part of the syntax, filled in after parsing
+    int slotCount = 0;
+  }
+
   static class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body){
       this.name = name;
@@ -53,6 +81,12 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    // not part of the syntax, filled in after parsing
+    int slot = -1;
+    int slotCount = 0;
+    boolean pure = false;
+    List<Token> callees;
   }
 
   static class If extends Stmt {
@@ -98,10 +132,14 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    // not part of the syntax, filled in after parsing
+    int slot = -1;
   }
 
   static class While extends Stmt {
-    While(Expr condition, Stmt body){
+    While(Token keyword, Expr condition, Stmt body){
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -111,8 +149,12 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
     final Stmt body;
+
+    // not part of the syntax, filled in after parsing
+    int slotCount = 0;
   }
 
 
@@ -0,0 +1,89 @@
+package lox;
+
+import java.util.Map;
+
+// Interns identifier and keyword names for the Scanner. A name is looked up straight from the source
+// text by its offsets, so a name that has been seen before costs no allocation at all: the Scanner gets
+// back the same String instance every time. That also means every use of a variable shares one String,
+// whose hash is computed once and cached, and equality checks on it usually succeed on identity.
+class SymbolTable {
+    // open addressing with linear probing. the capacity is always a power of two.
+    private String[] names = new String[64];
+    private TokenType[] types = new TokenType[64];
+    private int[] hashes = new int[64];
+    private int size = 0;
+
+    SymbolTable(Map<String, TokenType> keywords) {
+        for (Map.Entry<String, TokenType> keyword : keywords.entrySet()) {
+            String name = keyword.getKey();
+            insert(name, name.hashCode(), keyword.getValue());
+        }
+    }
+
+    // the slot holding the name source[start, end), adding it as an identifier if it is new.
+    // use name(slot) and type(slot) to read it.
+    int intern(Source source, int start, int end) {
+        // the same hash String.hashCode() computes, so it can be reused when growing the table
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = names.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            String name = names[slot];
+            if (name == null) {
+                return insert(source.substring(start, end), hash, TokenType.IDENTIFIER);
+            }
+
+            if (hashes[slot] == hash && matches(name, source, start, end)) return slot;
+        }
+    }
+
+    String name(int slot) {
+        return names[slot];
+    }
+
+    TokenType type(int slot) {
+        return types[slot];
+    }
+
+    private static boolean matches(String name, Source source, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    // returns the slot the name went into
+    private int insert(String name, int hash, TokenType type) {
+        // keep the table at most half full so probe sequences stay short
+        if ((size + 1) * 2 > names.length) grow();
+
+        int mask = names.length - 1;
+        int slot = hash & mask;
+        while (names[slot] != null) slot = (slot + 1) & mask;
+
+        names[slot] = name;
+        types[slot] = type;
+        hashes[slot] = hash;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        TokenType[] oldTypes = types;
+        int[] oldHashes = hashes;
+
+        names = new String[oldNames.length * 2];
+        types = new TokenType[oldNames.length * 2];
+        hashes = new int[oldNames.length * 2];
+        size = 0;
+
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) insert(oldNames[i], oldHashes[i], oldTypes[i]);
+        }
+    }
+}
@@ -0,0 +1,559 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A stack-based virtual machine that runs the bytecode produced by the Compiler.
+// It is an alternative to the tree-walking Interpreter and must behave exactly like it:
+// same output, same runtime errors. Instead of visiting nodes it loops over a flat byte array,
+// and Lox calls push a CallFrame instead of recursing through Java methods.
+// Since the call stack lives on the heap, how deep Lox code can recurse is only limited by stackBudget,
+// and a call in tail position reuses its caller's frame so tail recursion never runs out at all.
+class VM {
+    // a function as the VM sees it at runtime. natives can call it back through LoxCallable.
+    static class Function implements LoxCallable {
+        final Chunk chunk;
+        private final VM vm;
+
+        Function(Chunk chunk, VM vm) {
+            this.chunk = chunk;
+            this.vm = vm;
+        }
+
+        // a native calling us back. a VM can only be used by the thread running it, so this runs on the VM
+        // of the interpreter the native was given, which belongs to the calling thread.
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            VM caller = interpreter.vm;
+            if (caller == null) caller = vm.forThread(interpreter);
+            return caller.callFromNative(this, arguments);
+        }
+
+        @Override
+        public boolean isNative() {
+            return false;
+        }
+
+        @Override
+        public int arity() {
+            return chunk.arity;
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + chunk.name + ">";
+        }
+    }
+
+    // one per active Lox call. base is where the callee sits on the value stack.
+    private static class CallFrame {
+        Chunk chunk;
+        int ip;
+        Environment environment;
+        int base;
+        // what this frame counts against the stack budget
+        long bytes;
+    }
+
+    // a rough guess at what a call costs on the heap: the CallFrame, its Environment and a few stack entries,
+    // plus a reference for each slot in the Environment
+    private static final long FRAME_BYTES = 128;
+    private static final long SLOT_BYTES = 8;
+
+    // the VM shares the Interpreter's globals, so the natives it defines work the same in both engines
+    private final Interpreter interpreter;
+    private final Environment globals;
+    private final Budget budget;
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    // how much memory the call stack may use before a call fails with "Stack overflow."
+    // defaults to a quarter of the heap.
+    long stackBudget = Runtime.getRuntime().maxMemory() / 4;
+    private long stackBytes = 0;
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        this.budget = interpreter.budget;
+        interpreter.vm = this;
+    }
+
+    // a VM for another thread's interpreter (see Interpreter.forThread), with the same limits as this one
+    VM forThread(Interpreter interpreter) {
+        VM vm = new VM(interpreter);
+        vm.stackBudget = stackBudget;
+        return vm;
+    }
+
+    public void interpret(List<Stmt> statements) {
+        Chunk script = new Compiler(interpreter.reporter).compile(statements);
+        if (script == null) return;
+
+        interpret(script);
+    }
+
+    // runs an already compiled script
+    void interpret(Chunk script) {
+        try {
+            push(null);
+            pushFrame(script, globals, 0);
+            run(0);
+        } catch (RuntimeError error) {
+            interpreter.reporter.runtimeError(error);
+        } finally {
+            reset();
+        }
+    }
+
+    // on a runtime error there may be frames left over, the next run starts from scratch
+    private void reset() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        Arrays.fill(frames, 0, frameCount, null);
+        frameCount = 0;
+        stackBytes = 0;
+    }
+
+    private Object callFromNative(Function function, List<Object> arguments) {
+        int exitDepth = frameCount;
+        push(function);
+        for (Object argument : arguments) {
+            push(argument);
+        }
+        if (exitDepth > 0) {
+            callFunction(function, arguments.size(), callSite());
+            run(exitDepth);
+            return pop();
+        }
+
+        // the first call on a thread of its own (see Concurrency). there's no call site to blame for an
+        // overflow, and like the script's frame in interpret this one isn't counted against the budget.
+        try {
+            if (Metrics.ENABLED) Metrics.calls.increment();
+            pushFrame(function.chunk, bindArguments(function.chunk, arguments.size()), 0);
+            run(0);
+            return pop();
+        } finally {
+            reset();
+        }
+    }
+
+    // runs instructions until the frame at exitDepth returns
+    private void run(int exitDepth) {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.chunk.code;
+
+        for (;;) {
+            byte instruction = code[frame.ip++];
+            switch (instruction) {
+                case OpCode.CONSTANT:
+                    push(frame.chunk.constants.get(readShort(frame)));
+                    break;
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.POP: pop(); break;
+
+                case OpCode.GET_GLOBAL:
+                    push(globalCell(frame.chunk, readShort(frame)).value);
+                    break;
+                case OpCode.DEFINE_GLOBAL: {
+                    Token name = (Token)frame.chunk.constants.get(readShort(frame));
+                    globals.define(name.lexeme, pop());
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    // assignment is an expression so the value stays on the stack
+                    globalCell(frame.chunk, readShort(frame)).set(peek(0));
+                    break;
+                }
+                case OpCode.GET_LOCAL: {
+                    int depth = readShort(frame);
+                    int slot = readShort(frame);
+                    push(frame.environment.getAt(depth, slot));
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int depth = readShort(frame);
+                    int slot = readShort(frame);
+                    frame.environment.assignAt(depth, slot, peek(0));
+                    break;
+                }
+                case OpCode.DEFINE_LOCAL:
+                    frame.environment.defineAt(readShort(frame), pop());
+                    break;
+
+                case OpCode.EQUAL: {
+                    Object right = pop();
+                    Object left = pop();
+                    push(Interpreter.isEqual(left, right));
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object right = pop();
+                    Object left = pop();
+                    push(!Interpreter.isEqual(left, right));
+                    break;
+                }
+                case OpCode.GREATER: {
+                    checkNumberOperands(frame);
+                    double right = (double)pop();
+                    double left = (double)pop();
+                    push(left > right);
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    checkNumberOperands(frame);
+                    double right = (double)pop();
+                    double left = (double)pop();
+                    push(left >= right);
+                    break;
+                }
+                case OpCode.LESS: {
+                    checkNumberOperands(frame);
+                    double right = (double)pop();
+                    double left = (double)pop();
+                    push(left < right);
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    checkNumberOperands(frame);
+                    double right = (double)pop();
+                    double left = (double)pop();
+                    push(left <= right);
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object right = pop();
+                    Object left = pop();
+                    if (left instanceof Double && right instanceof Double) {
+                        push((double)left + (double)right);
+                    } else if (Rope.isString(left) && Rope.isString(right)) {
+                        push(Rope.concat(left, right));
+                    } else {
+                        throw new RuntimeError(tokenAt(frame), "Operands must be two numbers or two strings");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    checkNumberOperands(frame);
+                    double right = (double)pop();
+                    double left = (double)pop();
+                    push(left - right);
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    checkNumberOperands(frame);
+                    double right = (double)pop();
+                    double left = (double)pop();
+                    push(left * right);
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    checkNumberOperands(frame);
+                    double right = (double)pop();
+                    double left = (double)pop();
+                    push(left / right);
+                    break;
+                }
+                case OpCode.NOT:
+                    push(!Interpreter.isTruthy(pop()));
+                    break;
+                case OpCode.NEGATE: {
+                    Object operand = pop();
+                    if (!(operand instanceof Double)) {
+                        throw new RuntimeError(tokenAt(frame), "Operand must be a number.");
+                    }
+                    push(-(double)operand);
+                    break;
+                }
+
+                case OpCode.PRINT:
+                    interpreter.print(pop());
+                    break;
+
+                case OpCode.JUMP: {
+                    int offset = readShort(frame);
+                    frame.ip += offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = readShort(frame);
+                    if (!Interpreter.isTruthy(peek(0))) frame.ip += offset;
+                    break;
+                }
+                case OpCode.LOOP: {
+                    if (--budget.tick < 0) budget.nextSlice(tokenAt(frame));
+                    int offset = readShort(frame);
+                    frame.ip -= offset;
+                    break;
+                }
+
+                case OpCode.CALL: {
+                    Token paren = tokenAt(frame);
+                    int argCount = code[frame.ip++] & 0xff;
+                    if (callValue(peek(argCount), argCount, paren)) {
+                        // a Lox function was called, continue in its frame
+                        frame = frames[frameCount - 1];
+                        code = frame.chunk.code;
+                    }
+                    break;
+                }
+                case OpCode.FUNCTION: {
+                    Chunk chunk = (Chunk)frame.chunk.constants.get(readShort(frame));
+                    push(new Function(chunk, this));
+                    break;
+                }
+
+                case OpCode.PUSH_SCOPE:
+                    frame.environment = new Environment(frame.environment, readShort(frame));
+                    break;
+                case OpCode.POP_SCOPE:
+                    frame.environment = frame.environment.enclosing;
+                    break;
+
+                case OpCode.TAIL_CALL: {
+                    Token paren = tokenAt(frame);
+                    int argCount = code[frame.ip++] & 0xff;
+                    if (tailCall(frame, peek(argCount), argCount, paren)) {
+                        // the callee has taken over this frame
+                        code = frame.chunk.code;
+                        break;
+                    }
+                    // anything else was called normally and has already finished, so return from this frame
+                    if (popFrame(frame, exitDepth)) return;
+                    frame = frames[frameCount - 1];
+                    code = frame.chunk.code;
+                    break;
+                }
+                case OpCode.RETURN:
+                    if (popFrame(frame, exitDepth)) return;
+                    frame = frames[frameCount - 1];
+                    code = frame.chunk.code;
+                    break;
+            }
+        }
+    }
+
+    // returns from the frame on top, leaving the call's result on the stack. returns true once the frame
+    // at exitDepth has returned, which ends run.
+    private boolean popFrame(CallFrame frame, int exitDepth) {
+        // Lox has no return statement yet so every call evaluates to nil
+        stackBytes -= frame.bytes;
+        frameCount--;
+        frames[frameCount] = null;
+        Arrays.fill(stack, frame.base, stackTop, null);
+        stackTop = frame.base;
+        push(null);
+        return frameCount == exitDepth;
+    }
+
+    // returns true if a new frame was pushed, false if the call already finished (a native)
+    private boolean callValue(Object callee, int argCount, Token paren) {
+        LoxCallable function = checkCall(callee, argCount, paren);
+        if (--budget.tick < 0) budget.nextSlice(paren);
+
+        if (isOurs(callee)) {
+            callFunction((Function)callee, argCount, paren);
+            return true;
+        }
+
+        Object result;
+        try {
+            result = callNative(function, argCount);
+        } catch (NativeError error) {
+            throw new RuntimeError(paren, error.getMessage());
+        }
+        Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+        stackTop -= argCount + 1;
+        push(interpreter.boxed(result));
+        return false;
+    }
+
+    // calls anything that isn't one of our functions with the arguments on top of the stack
+    private Object callNative(LoxCallable function, int argCount) {
+        if (function.isNative()) {
+            // natives only ever see flat strings, see Rope
+            for (int i = stackTop - argCount; i < stackTop; i++) {
+                stack[i] = Rope.flatten(stack[i]);
+            }
+        }
+
+        if (Metrics.ENABLED && function.isNative()) {
+            long start = System.nanoTime();
+            try {
+                return invokeNative(function, argCount);
+            } finally {
+                Metrics.nativeCalls.increment();
+                Metrics.nativeNanos.add(System.nanoTime() - start);
+            }
+        }
+        return invokeNative(function, argCount);
+    }
+
+    private Object invokeNative(LoxCallable function, int argCount) {
+        switch (argCount) {
+            case 0: return function.call0(interpreter);
+            case 1: return function.call1(interpreter, peek(0));
+            case 2: return function.call2(interpreter, peek(1), peek(0));
+            case 3: return function.call3(interpreter, peek(2), peek(1), peek(0));
+            case 4: return function.call4(interpreter, peek(3), peek(2), peek(1), peek(0));
+        }
+
+        List<Object> arguments = new ArrayList<>(argCount);
+        for (int i = argCount; i > 0; i--) {
+            arguments.add(peek(i - 1));
+        }
+        return function.call(interpreter, arguments);
+    }
+
+    // returns true if the callee is one of our functions and took over the frame, false if it was something
+    // else that has been called normally
+    private boolean tailCall(CallFrame frame, Object callee, int argCount, Token paren) {
+        if (!isOurs(callee)) {
+            callValue(callee, argCount, paren);
+            return false;
+        }
+        checkCall(callee, argCount, paren);
+        if (--budget.tick < 0) budget.nextSlice(paren);
+
+        if (Metrics.ENABLED) Metrics.calls.increment();
+        Chunk chunk = ((Function)callee).chunk;
+        Environment environment = bindArguments(chunk, argCount);
+
+        // nothing of the caller is needed any more, so its part of the stack goes too
+        Arrays.fill(stack, frame.base + 1, stackTop, null);
+        stack[frame.base] = callee;
+        stackTop = frame.base + 1;
+
+        stackBytes -= frame.bytes;
+        frame.bytes = frameBytes(chunk);
+        stackBytes += frame.bytes;
+
+        frame.chunk = chunk;
+        frame.ip = 0;
+        frame.environment = environment;
+        return true;
+    }
+
+    // the cell of the global named by a constant, remembered the same way the Interpreter's variable
+    // expressions do. a chunk can be shared by sessions (see PreparedScript) and threads, so a remembered
+    // cell is only used if it belongs to our globals.
+    private Environment.Cell globalCell(Chunk chunk, int constant) {
+        Environment.Cell[] cells = chunk.cells;
+        if (cells == null) {
+            cells = new Environment.Cell[chunk.constants.size()];
+            chunk.cells = cells;
+        }
+
+        Environment.Cell cell = cells[constant];
+        if (cell == null || cell.owner != globals) {
+            cell = globals.cell((Token)chunk.constants.get(constant));
+            cells[constant] = cell;
+        }
+        return cell;
+    }
+
+    // a function this VM can run in a frame of its own, rather than calling it like a native. functions made
+    // by another thread's VM count, since they share our globals.
+    private boolean isOurs(Object callee) {
+        return callee instanceof Function && ((Function)callee).vm.globals == globals;
+    }
+
+    private LoxCallable checkCall(Object callee, int argCount, Token paren) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        if (argCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + argCount + ".");
+        }
+        return function;
+    }
+
+    // binds the arguments on the stack into a fresh environment and enters the function's chunk
+    private void callFunction(Function function, int argCount, Token paren) {
+        Chunk chunk = function.chunk;
+        long bytes = frameBytes(chunk);
+        if (stackBytes + bytes > stackBudget) throw new RuntimeError(paren, "Stack overflow.");
+
+        if (Metrics.ENABLED) Metrics.calls.increment();
+        pushFrame(chunk, bindArguments(chunk, argCount), stackTop - argCount - 1);
+        frames[frameCount - 1].bytes = bytes;
+        stackBytes += bytes;
+    }
+
+    private Environment bindArguments(Chunk chunk, int argCount) {
+        Environment environment = new Environment(globals, chunk.slotCount);
+        for (int i = 0; i < argCount; i++) {
+            environment.defineAt(i, stack[stackTop - argCount + i]);
+        }
+        return environment;
+    }
+
+    private static long frameBytes(Chunk chunk) {
+        return FRAME_BYTES + SLOT_BYTES * chunk.slotCount;
+    }
+
+    private void pushFrame(Chunk chunk, Environment environment, int base) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        CallFrame frame = new CallFrame();
+        frame.chunk = chunk;
+        frame.ip = 0;
+        frame.environment = environment;
+        frame.base = base;
+        frames[frameCount++] = frame;
+    }
+
+    private int readShort(CallFrame frame) {
+        byte[] code = frame.chunk.code;
+        frame.ip += 2;
+        return ((code[frame.ip - 2] & 0xff) << 8) | (code[frame.ip - 1] & 0xff);
+    }
+
+    // the token recorded for the instruction that is currently executing.
+    // only valid before any of the instruction's operands have been read.
+    private Token tokenAt(CallFrame frame) {
+        return frame.chunk.tokens[frame.ip - 1];
+    }
+
+    // the token of the CALL (or TAIL_CALL) the innermost frame is executing, for a native that calls back
+    // into the VM. the instruction and its argument count byte have both been read by then.
+    private Token callSite() {
+        CallFrame frame = frames[frameCount - 1];
+        return frame.chunk.tokens[frame.ip - 2];
+    }
+
+    // must be called before the operands are popped, the same as Interpreter.checkNumberOperands
+    private void checkNumberOperands(CallFrame frame) {
+        if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+        throw new RuntimeError(tokenAt(frame), "Operands must be numbers.");
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+        }
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--stackTop];
+        stack[stackTop] = null;
+        return value;
+    }
+
+    private Object peek(int distance) {
+        return stack[stackTop - 1 - distance];
+    }
+}
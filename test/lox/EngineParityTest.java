@@ -0,0 +1,51 @@
+package lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// Runs every program in test/programs through the tree-walking Interpreter and through the VM and checks
+// they print the same thing, runtime errors included. Neither engine is taken to be the right one, so a
+// program that should print something specific needs a test of its own.
+class EngineParityTest {
+    static final Path PROGRAMS = Path.of("test", "programs");
+
+    static Stream<Path> programs() throws IOException {
+        List<Path> programs;
+        try (Stream<Path> files = Files.list(PROGRAMS)) {
+            programs = files.filter(path -> path.toString().endsWith(".lox")).sorted().toList();
+        }
+        return programs.stream();
+    }
+
+    @ParameterizedTest
+    @MethodSource("programs")
+    void treeWalkerAndVmPrintTheSame(Path program) throws IOException {
+        String source = Files.readString(program);
+        Run interpreted = run(source, false);
+        Run compiled = run(source, true);
+
+        assertEquals(interpreted.output, compiled.output, program + " printed something else on the VM");
+        assertEquals(interpreted.hadRuntimeError, compiled.hadRuntimeError);
+    }
+
+    record Run(String output, boolean hadError, boolean hadRuntimeError) {}
+
+    // everything the session printed, errors included, as one string
+    static Run run(String source, boolean useVm) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LoxSession session = new LoxSession(new PrintStream(bytes, true, StandardCharsets.UTF_8), useVm);
+        session.run(source);
+        return new Run(bytes.toString(StandardCharsets.UTF_8), session.hadError(), session.hadRuntimeError());
+    }
+}
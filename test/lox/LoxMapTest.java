@@ -0,0 +1,85 @@
+package lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+// Puts, removes and looks up random keys in a LoxMap and a HashMap side by side and checks they always
+// agree. Doubles, strings, booleans and nil are equal in Lox exactly when they are equal in Java (numbers
+// by their bits, so 0 and -0 are different keys and NaN is a key like any other), so a HashMap is a fair
+// model of what the map should hold.
+class LoxMapTest {
+    private static final double[] ODD_NUMBERS = {
+        0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.5, -1.0, 1e300
+    };
+
+    @Test
+    void numberKeysMatchHashMap() {
+        // only number keys, so the map never leaves its double[] layout
+        check(new Random(1), random -> randomNumber(random));
+    }
+
+    @Test
+    void mixedKeysMatchHashMap() {
+        check(new Random(2), random -> {
+            switch (random.nextInt(4)) {
+                case 0: return "key" + random.nextInt(300);
+                case 1: return random.nextBoolean();
+                case 2: return random.nextInt(50) == 0 ? null : randomNumber(random);
+                default: return randomNumber(random);
+            }
+        });
+    }
+
+    @Test
+    void switchingToObjectKeysKeepsTheNumbers() {
+        LoxMap map = new LoxMap();
+        for (int i = 0; i < 1000; i++) map.put((double)i, (double)i * i);
+        map.put("a string", true);
+
+        assertEquals(1001, map.size());
+        for (int i = 0; i < 1000; i++) assertEquals((double)i * i, map.get((double)i));
+        assertEquals(true, map.get("a string"));
+    }
+
+    private static Object randomNumber(Random random) {
+        if (random.nextInt(20) == 0) return ODD_NUMBERS[random.nextInt(ODD_NUMBERS.length)];
+        // a small range, so the same keys keep coming back to be replaced and removed
+        return (double)random.nextInt(2000);
+    }
+
+    private static void check(Random random, Function<Random, Object> keys) {
+        LoxMap map = new LoxMap();
+        Map<Object, Object> expected = new HashMap<>();
+
+        for (int step = 0; step < 200_000; step++) {
+            Object key = keys.apply(random);
+            // mostly puts early on so the map grows, then as many removes as puts so it shrinks back
+            int putPercent = step < 50_000 ? 70 : 50;
+            int roll = random.nextInt(100);
+            if (roll < putPercent) {
+                Object value = (double)step;
+                map.put(key, value);
+                expected.put(key, value);
+            } else if (roll < putPercent + 25) {
+                assertEquals(expected.remove(key), map.remove(key), "remove " + key);
+            } else {
+                assertEquals(expected.containsKey(key), map.has(key), "has " + key);
+                assertEquals(expected.get(key), map.get(key), "get " + key);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Object, Object> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()), "get " + entry.getKey());
+        }
+        assertEquals(expected.keySet(), new HashSet<>(Arrays.asList(LoxArray.elements(map.keys()))));
+    }
+}
@@ -0,0 +1,99 @@
+package lox;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class SnapshotTest {
+    @TempDir
+    Path directory;
+
+    // a tree read back from a .loxc is written out byte for byte the same as the tree it was made from
+    @ParameterizedTest
+    @MethodSource("lox.EngineParityTest#programs")
+    void readingGivesBackTheSameTree(Path program) throws IOException {
+        Path script = copy(program);
+        new LoxSession(quiet()).compile(script);
+        Path snapshot = Snapshot.pathFor(script);
+        assertTrue(Files.exists(snapshot));
+
+        List<Stmt> statements = Snapshot.read(snapshot);
+        AstWriter writer = new AstWriter();
+        writer.writeStmts(statements);
+        ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+        long size = Files.size(script);
+        long modified = Files.getLastModifiedTime(script).toMillis();
+        writer.finish(rewritten, size, modified);
+
+        assertArrayEquals(Files.readAllBytes(snapshot), rewritten.toByteArray());
+    }
+
+    // running the .loxc prints the same as running the source, down to the lines in error messages
+    @ParameterizedTest
+    @MethodSource("lox.EngineParityTest#programs")
+    void runningTheSnapshotPrintsTheSame(Path program) throws IOException {
+        Path script = copy(program);
+        new LoxSession(quiet()).compile(script);
+
+        for (boolean useVm : new boolean[] { false, true }) {
+            String expected = EngineParityTest.run(Files.readString(script), useVm).output();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            LoxSession session = new LoxSession(new PrintStream(bytes, true, StandardCharsets.UTF_8), useVm);
+            session.runFile(Snapshot.pathFor(script));
+            assertEquals(expected, bytes.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void aSnapshotOfAnEditedScriptIsStale() throws IOException {
+        Path script = directory.resolve("edited.lox");
+        Files.writeString(script, "print 1;\n");
+        new LoxSession(quiet()).compile(script);
+        Path snapshot = Snapshot.pathFor(script);
+        assertNotNull(Snapshot.readIfFresh(script, snapshot));
+
+        Files.writeString(script, "print 22;\n");
+        Files.setLastModifiedTime(script, FileTime.fromMillis(Files.getLastModifiedTime(script).toMillis() + 1000));
+        assertNull(Snapshot.readIfFresh(script, snapshot));
+    }
+
+    @Test
+    void aCutOffSnapshotIsReportedAsCorrupt() throws IOException {
+        Path script = directory.resolve("cut.lox");
+        Files.writeString(script, "var a = 1;\nfun f(x) { print x + a; }\nf(2);\n");
+        new LoxSession(quiet()).compile(script);
+        Path snapshot = Snapshot.pathFor(script);
+
+        byte[] bytes = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(bytes, bytes.length / 2));
+        assertThrows(IOException.class, () -> Snapshot.read(snapshot));
+        assertNull(Snapshot.readIfFresh(script, snapshot));
+    }
+
+    private Path copy(Path program) throws IOException {
+        return Files.copy(program, directory.resolve(program.getFileName()));
+    }
+
+    private static PrintStream quiet() {
+        return new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8);
+    }
+}
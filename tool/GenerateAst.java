@@ -2,8 +2,11 @@ package tool;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class GenerateAst {
     // This class exists solely as a script to generate syntax trees
@@ -14,16 +17,46 @@ public class GenerateAst {
         }
         String outputDir = args[0];
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block: List<Stmt> statements",
+        // anything after a '|' is not part of the constructor. these are mutable fields that are
+        // filled in after parsing (e.g. which slot the Resolver put a variable in) or while running.
+        List<String> exprTypes = Arrays.asList(
+            "Assign: Token name, Expr value | int depth = -1, int slot = -1, Environment.Cell cell",
+            "Binary: Expr left, Token operator, Expr right" +
+                " | Specialization.Binary node = new Specialization.UninitializedBinary(this)",
+            "Call: Expr callee, Token paren, List<Expr> arguments | LoxCallable cachedCallee",
+            "Grouping: Expr expression",
+            "Literal: Object value",
+            "Logical: Expr left, Token operator, Expr right" +
+                " | Specialization.Logical node = new Specialization.UninitializedLogical(this)",
+            "Unary: Token operator, Expr right" +
+                " | Specialization.Unary node = new Specialization.UninitializedUnary(this)",
+            "Variable: Token name | int depth = -1, int slot = -1, Environment.Cell cell"
+        );
+
+        List<String> stmtTypes = Arrays.asList(
+            "Block: List<Stmt> statements | int slotCount = 0",
             "Expression: Expr expression",
-            "Function: Token name, List<Token> params," + " List<Stmt> body", 
+            "For: Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body" +
+                " | int slotCount = 0",
+            "Function: Token name, List<Token> params," + " List<Stmt> body" +
+                " | int slot = -1, int slotCount = 0, boolean pure = false, List<Token> callees",
             "If: Expr condition, Stmt thenBranch," + 
                 " Stmt elseBranch",
             "Print: Expr expression",
-            "Var: Token name, Expr initializer",
-            "While: Expr condition, Stmt body"
-        ));
+            "Var: Token name, Expr initializer | int slot = -1",
+            "While: Token keyword, Expr condition, Stmt body | int slotCount = 0"
+        );
+
+        defineAst(outputDir, "Expr", exprTypes);
+        defineAst(outputDir, "Stmt", stmtTypes);
+
+        // the .loxc snapshot encoding follows the order of the types and their fields above,
+        // so changing either means bumping Snapshot.VERSION
+        Map<String, List<String>> bases = new LinkedHashMap<>();
+        bases.put("Expr", exprTypes);
+        bases.put("Stmt", stmtTypes);
+        defineWriter(outputDir, bases);
+        defineReader(outputDir, bases);
     }
 
     /**
@@ -49,8 +82,9 @@ public class GenerateAst {
         
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split("\\|");
+            String resolved = fields.length > 1 ? fields[1].trim() : null;
+            defineType(writer, baseName, className, fields[0].trim(), resolved);
             writer.println();
         }
 
@@ -72,7 +106,8 @@ public class GenerateAst {
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+            String resolvedList) {
         // inner class header
         writer.println("  static class " + className + " extends " + baseName + " {");
 
@@ -100,6 +135,146 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (resolvedList != null) {
+            writer.println();
+            writer.println("    // not part of the syntax, filled in after parsing");
+            for (String field : resolvedList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
+        writer.println("  }");
+    }
+
+    // AstWriter writes each node as its tag (its position in the list of types, starting at 1 since 0 is
+    // a missing node) followed by its syntax fields in order. The mutable fields are never written.
+    private static void defineWriter(String outputDir, Map<String, List<String>> bases) throws IOException {
+        PrintWriter writer = new PrintWriter(outputDir + "/AstWriter.java", "UTF-8");
+
+        writer.println("package lox;");
+        writer.println();
+        writer.println("import java.util.List;");
+        writer.println();
+        writer.println("// generated by tool/GenerateAst. see Snapshot for the rest of the format.");
+        writer.println("class AstWriter extends Snapshot.Output implements " +
+            String.join(", ", visitorTypes(bases)) + " {");
+
+        for (String baseName : bases.keySet()) {
+            String name = baseName.toLowerCase();
+            writer.println("  void write" + baseName + "(" + baseName + " " + name + ") {");
+            writer.println("    if (" + name + " == null) {");
+            writer.println("      writeTag(0);");
+            writer.println("    } else {");
+            writer.println("      " + name + ".accept(this);");
+            writer.println("    }");
+            writer.println("  }");
+            writer.println();
+            writer.println("  void write" + baseName + "s(List<" + baseName + "> " + name + "s) {");
+            writer.println("    writeCount(" + name + "s.size());");
+            writer.println("    for (" + baseName + " " + name + " : " + name + "s) {");
+            writer.println("      write" + baseName + "(" + name + ");");
+            writer.println("    }");
+            writer.println("  }");
+            writer.println();
+        }
+
+        for (Map.Entry<String, List<String>> base : bases.entrySet()) {
+            String baseName = base.getKey();
+            String name = baseName.toLowerCase();
+            int tag = 1;
+            for (String type : base.getValue()) {
+                String className = type.split(":")[0].trim();
+                writer.println("  @Override");
+                writer.println("  public Void visit" + className + baseName + "(" + baseName + "." + className + " " +
+                    name + ") {");
+                writer.println("    writeTag(" + tag++ + ");");
+                for (String field : syntaxFields(type)) {
+                    String[] parts = field.split(" ");
+                    writer.println("    write" + codecName(parts[0]) + "(" + name + "." + parts[1] + ");");
+                }
+                writer.println("    return null;");
+                writer.println("  }");
+                writer.println();
+            }
+        }
+
+        writer.println("}");
+        writer.close();
+    }
+
+    // AstReader is the mirror image of AstWriter, rebuilding each node through its constructor
+    private static void defineReader(String outputDir, Map<String, List<String>> bases) throws IOException {
+        PrintWriter writer = new PrintWriter(outputDir + "/AstReader.java", "UTF-8");
+
+        writer.println("package lox;");
+        writer.println();
+        writer.println("import java.io.IOException;");
+        writer.println("import java.util.ArrayList;");
+        writer.println("import java.util.List;");
+        writer.println();
+        writer.println("// generated by tool/GenerateAst. see Snapshot for the rest of the format.");
+        writer.println("class AstReader extends Snapshot.Input {");
+        writer.println("  AstReader(byte[] bytes) throws IOException {");
+        writer.println("    super(bytes);");
         writer.println("  }");
+
+        for (Map.Entry<String, List<String>> base : bases.entrySet()) {
+            String baseName = base.getKey();
+            String name = baseName.toLowerCase();
+
+            writer.println();
+            writer.println("  " + baseName + " read" + baseName + "() {");
+            writer.println("    switch (readTag()) {");
+            writer.println("      case 0: return null;");
+            int tag = 1;
+            for (String type : base.getValue()) {
+                String className = type.split(":")[0].trim();
+                // arguments are evaluated left to right, the same order the fields were written in
+                List<String> reads = new ArrayList<>();
+                for (String field : syntaxFields(type)) {
+                    reads.add("read" + codecName(field.split(" ")[0]) + "()");
+                }
+                writer.println("      case " + tag++ + ": return new " + baseName + "." + className + "(" +
+                    String.join(", ", reads) + ");");
+            }
+            writer.println("      default: throw new IllegalStateException(\"Unknown " + baseName + " tag.\");");
+            writer.println("    }");
+            writer.println("  }");
+            writer.println();
+            writer.println("  List<" + baseName + "> read" + baseName + "s() {");
+            writer.println("    int count = readCount();");
+            writer.println("    List<" + baseName + "> " + name + "s = new ArrayList<>(count);");
+            writer.println("    for (int i = 0; i < count; i++) {");
+            writer.println("      " + name + "s.add(read" + baseName + "());");
+            writer.println("    }");
+            writer.println("    return " + name + "s;");
+            writer.println("  }");
+        }
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static List<String> visitorTypes(Map<String, List<String>> bases) {
+        List<String> visitors = new ArrayList<>();
+        for (String baseName : bases.keySet()) {
+            visitors.add(baseName + ".Visitor<Void>");
+        }
+        return visitors;
+    }
+
+    // the constructor fields of a type, e.g. "Token name"
+    private static List<String> syntaxFields(String type) {
+        String fieldList = type.split(":")[1].split("\\|")[0].trim();
+        return Arrays.asList(fieldList.split(", "));
+    }
+
+    // the suffix of the Snapshot method that reads or writes a field of this type, e.g. writeExprs
+    private static String codecName(String fieldType) {
+        if (fieldType.startsWith("List<")) {
+            return codecName(fieldType.substring(5, fieldType.length() - 1)) + "s";
+        }
+        if (fieldType.equals("Object")) return "Literal";
+        return fieldType;
     }
 }